@@ -0,0 +1,26 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+   What a mover's next activity will do when all it does is walk: worked
+   out ahead of time by Entity.planActivity and applied later by
+   Entity.commitPlan if nothing it depended on has changed.
+*/
+final class ActivityPlan
+{
+   public Entity entity;
+   public Action action;
+   public Point start;
+   public int steps;
+   // the cached target when planned, and the one heading for
+   public Entity cachedTarget;
+   public Entity target;
+   // set when target came from a search, valid while kindVersion holds,
+   // and the candidates that search read
+   public boolean searched;
+   public int kindVersion;
+   public int scanned;
+   // cells stepped through, and every cell the plan looked at
+   public final List<Point> path = new ArrayList<>();
+   public final List<Point> reads = new ArrayList<>();
+}
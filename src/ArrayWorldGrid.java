@@ -0,0 +1,167 @@
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/*
+   The original on-heap storage: one reference per cell in 2D arrays.
+   Rows can be shared copy-on-write with copies and forks of the grid.
+*/
+final class ArrayWorldGrid
+   implements WorldGrid
+{
+   private final Background[][] background;
+   private final Entity[][] occupancy;
+   // rows that other grids also use, copied before writing
+   private boolean[] sharedRows;
+   private boolean[] sharedOccupancy;
+   // shared occupancy rows still hold the entities of the grid this one
+   // was forked from (or its ancestors); these are their counterparts
+   // here, swapped in as a fork first reads or writes each row
+   private Map<Entity, Entity> translation;
+
+   public ArrayWorldGrid(int numRows, int numCols,
+      Background defaultBackground)
+   {
+      this.background = new Background[numRows][numCols];
+      this.occupancy = new Entity[numRows][numCols];
+
+      for (int row = 0; row < numRows; row++)
+      {
+         Arrays.fill(this.background[row], defaultBackground);
+      }
+   }
+
+   /*
+      A grid with terrain's backgrounds and no occupants.  The two share
+      background rows until either one changes a row.  Rows terrain
+      already shares are left alone, so copying a terrain that no longer
+      changes only reads it, and can be done on several threads at once.
+   */
+   public ArrayWorldGrid(ArrayWorldGrid terrain)
+   {
+      int numRows = terrain.getNumRows();
+      terrain.shareAllRows();
+      this.background = terrain.background.clone();
+      this.occupancy = new Entity[numRows][terrain.getNumCols()];
+      this.sharedRows = allShared(numRows);
+   }
+
+   /*
+      A fork of parent whose entities are parent's entities mapped through
+      copies.  Every row is shared until either grid writes to it, so
+      forking costs one pointer per row.
+   */
+   public ArrayWorldGrid(ArrayWorldGrid parent, Map<Entity, Entity> copies)
+   {
+      int numRows = parent.getNumRows();
+      parent.sharedRows = allShared(numRows);
+      parent.sharedOccupancy = allShared(numRows);
+      this.background = parent.background.clone();
+      this.occupancy = parent.occupancy.clone();
+      this.sharedRows = allShared(numRows);
+      this.sharedOccupancy = allShared(numRows);
+
+      this.translation = new IdentityHashMap<>(copies);
+      if (parent.translation != null)
+      {
+         for (Map.Entry<Entity, Entity> older : parent.translation.entrySet())
+         {
+            Entity copy = copies.get(older.getValue());
+            if (copy != null)
+            {
+               translation.put(older.getKey(), copy);
+            }
+         }
+      }
+   }
+
+   private void shareAllRows()
+   {
+      if (sharedRows == null)
+      {
+         sharedRows = allShared(getNumRows());
+         return;
+      }
+      for (int row = 0; row < sharedRows.length; row++)
+      {
+         if (!sharedRows[row])
+         {
+            sharedRows[row] = true;
+         }
+      }
+   }
+
+   private static boolean[] allShared(int numRows)
+   {
+      boolean[] shared = new boolean[numRows];
+      Arrays.fill(shared, true);
+      return shared;
+   }
+
+   public int getNumRows()
+   {
+      return occupancy.length;
+   }
+
+   public int getNumCols()
+   {
+      return occupancy.length == 0 ? 0 : occupancy[0].length;
+   }
+
+   /*
+      A fork copies a shared row the first time it reads it, so the reads
+      after that are plain array loads.  Forks run without speculation, so
+      only one thread ever reads one; the grids they were forked from
+      never translate, and read shared rows in place.
+   */
+   public Entity getOccupant(Point pos)
+   {
+      if (translation != null && sharedOccupancy[pos.y])
+      {
+         ownOccupancyRow(pos.y);
+      }
+      return occupancy[pos.y][pos.x];
+   }
+
+   public void setOccupant(Point pos, Entity entity)
+   {
+      if (sharedOccupancy != null && sharedOccupancy[pos.y])
+      {
+         ownOccupancyRow(pos.y);
+      }
+      occupancy[pos.y][pos.x] = entity;
+   }
+
+   private void ownOccupancyRow(int row)
+   {
+      Entity[] own = occupancy[row].clone();
+      if (translation != null)
+      {
+         for (int col = 0; col < own.length; col++)
+         {
+            Entity copy = own[col] == null ? null : translation.get(own[col]);
+            if (copy != null)
+            {
+               own[col] = copy;
+            }
+         }
+      }
+      occupancy[row] = own;
+      sharedOccupancy[row] = false;
+   }
+
+   public Background getBackground(Point pos)
+   {
+      return background[pos.y][pos.x];
+   }
+
+   public void setBackground(Point pos, Background background)
+   {
+      if (sharedRows != null && sharedRows[pos.y])
+      {
+         this.background[pos.y] = this.background[pos.y].clone();
+         sharedRows[pos.y] = false;
+      }
+      this.background[pos.y][pos.x] = background;
+   }
+}
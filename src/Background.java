@@ -13,9 +13,14 @@ final class Background
       this.images = images;
    }
 
+   public String getId()
+   {
+      return id;
+   }
+
    public void setBackgroundCell(WorldModel world, Point pos)
 
    {
-      world.background[pos.y][pos.x] = this;
+      world.setBackgroundCell(pos, this);
    }
 }
@@ -0,0 +1,351 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Scanner;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+   Runs a parameter sweep: many headless variations of one world, side by
+   side on a work-stealing pool.  The sweep file lists values per
+   parameter, one parameter per line, and every combination is run:
+
+      miners=5,10,20
+      resourcelimit=2,4
+      veinperiod=5000,10000
+      seed=1,2,3
+
+   A parameter that is not listed keeps the base world's value and is
+   written as -1 (seed defaults to 1).  The save file is parsed once, and
+   its terrain copied once before the runs start; each run copies that
+   terrain copy-on-write and gets fresh entities with its variation
+   applied, and all runs share one read-only ImageStore.  Results are
+   written column by column: each line of the output is one column, its
+   name first and then one tab-separated value per run.
+*/
+final class BatchRunner
+{
+   private static final String MINERS_KEY = "miners";
+   private static final String RESOURCE_LIMIT_KEY = "resourcelimit";
+   private static final String VEIN_PERIOD_KEY = "veinperiod";
+   private static final String SEED_KEY = "seed";
+   private static final String[] PARAMETERS =
+      { MINERS_KEY, RESOURCE_LIMIT_KEY, VEIN_PERIOD_KEY, SEED_KEY };
+   private static final int MINERS = 0;
+   private static final int RESOURCE_LIMIT = 1;
+   private static final int VEIN_PERIOD = 2;
+   private static final int SEED = 3;
+   // written for parameters that kept the base world's value
+   private static final int UNSET = -1;
+
+   private final WorldConfig config;
+   private final ImageStore imageStore;
+   private final WorldModel base;
+   // base's backgrounds, which no run writes to
+   private final WorldModel terrain;
+   private final List<int[]> runs;
+   private final long[][] results;
+
+   public BatchRunner(WorldConfig config, List<int[]> runs)
+      throws FileNotFoundException
+   {
+      this.config = config.copy();
+      this.config.metrics = false;
+      this.imageStore = HeadlessSimulation.createImageStore(config);
+      this.imageStore.freeze();
+      // every run starts from the base world, so it has to load
+      Scanner in = new Scanner(new File(this.config.saveFile));
+      this.base = VirtualWorld.createWorld(this.config, imageStore);
+      base.load(in, imageStore);
+      this.terrain = base.copyTerrain();
+      this.runs = runs;
+      this.results = new long[runs.size()][];
+   }
+
+   public static void run(WorldConfig config)
+   {
+      if (config.grid != GridKind.ARRAY)
+      {
+         System.err.println("batch runs need an array grid");
+         return;
+      }
+
+      List<int[]> runs;
+      try
+      {
+         runs = readSweep(config.batchFile);
+      }
+      catch (FileNotFoundException | IllegalArgumentException e)
+      {
+         System.err.println(e.getMessage());
+         return;
+      }
+
+      long start = System.currentTimeMillis();
+      BatchRunner runner;
+      try
+      {
+         runner = new BatchRunner(config, runs);
+      }
+      catch (FileNotFoundException e)
+      {
+         System.err.println(e.getMessage());
+         return;
+      }
+      ForkJoinPool pool = new ForkJoinPool(config.batchThreads);
+      try
+      {
+         pool.invoke(runner.new Runs(0, runs.size()));
+      }
+      finally
+      {
+         pool.shutdown();
+      }
+
+      try
+      {
+         runner.write(config.batchOutput);
+      }
+      catch (IOException e)
+      {
+         System.err.println(e.getMessage());
+         return;
+      }
+      System.out.println(String.format("%d runs of %d ms in %d ms, "
+         + "results in %s", runs.size(), config.duration,
+         System.currentTimeMillis() - start, config.batchOutput));
+   }
+
+   /*
+      Expands the sweep file into one parameter array per run, indexed
+      like PARAMETERS.
+   */
+   static List<int[]> readSweep(String filename)
+      throws FileNotFoundException
+   {
+      List<int[]> runs = new ArrayList<>();
+      int[] first = new int[PARAMETERS.length];
+      Arrays.fill(first, UNSET);
+      runs.add(first);
+
+      try (Scanner in = new Scanner(new File(filename)))
+      {
+         while (in.hasNextLine())
+         {
+            String line = in.nextLine().trim();
+            if (line.isEmpty() || line.startsWith("#"))
+            {
+               continue;
+            }
+            int split = line.indexOf('=');
+            int parameter = split < 0 ? -1
+               : Arrays.asList(PARAMETERS).indexOf(line.substring(0, split));
+            if (parameter < 0)
+            {
+               throw new IllegalArgumentException(
+                  String.format("unknown sweep line %s", line));
+            }
+
+            List<int[]> expanded = new ArrayList<>();
+            for (int[] run : runs)
+            {
+               for (String value : line.substring(split + 1).split(","))
+               {
+                  int[] variation = run.clone();
+                  variation[parameter] = Integer.parseInt(value.trim());
+                  expanded.add(variation);
+               }
+            }
+            runs = expanded;
+         }
+      }
+      return runs;
+   }
+
+   /*
+      Splits a range of runs in half until it is a single run, so idle
+      workers steal whole halves from busy ones.
+   */
+   private final class Runs
+      extends RecursiveAction
+   {
+      private static final long serialVersionUID = 1L;
+
+      private final int from;
+      private final int to;
+
+      Runs(int from, int to)
+      {
+         this.from = from;
+         this.to = to;
+      }
+
+      protected void compute()
+      {
+         if (to - from == 1)
+         {
+            results[from] = simulate(runs.get(from));
+         }
+         else if (to > from)
+         {
+            int middle = (from + to) >>> 1;
+            invokeAll(new Runs(from, middle), new Runs(middle, to));
+         }
+      }
+   }
+
+   private long[] simulate(int[] variation)
+   {
+      WorldConfig runConfig = config.copy();
+      runConfig.seed = variation[SEED] == UNSET ? 1 : variation[SEED];
+      WorldModel world = terrain.copyTerrain();
+      world.setRandom(new Random(runConfig.seed));
+      populate(world, variation);
+
+      long start = System.currentTimeMillis();
+      HeadlessSimulation simulation = new HeadlessSimulation(runConfig,
+         imageStore, world);
+      SpeculativeExecutor speculator =
+         simulation.getScheduler().getSpeculator();
+      try
+      {
+         simulation.advance(runConfig.duration);
+      }
+      finally
+      {
+         // each run has its own planner threads
+         if (speculator != null)
+         {
+            speculator.shutdown();
+         }
+      }
+
+      Map<EntityKind, Integer> census = simulation.census();
+      long[] row = new long[EntityKind.values().length + 2];
+      for (EntityKind kind : EntityKind.values())
+      {
+         row[kind.ordinal()] = census.getOrDefault(kind, 0);
+      }
+      row[row.length - 2] = simulation.getScheduler().getQueueDepth();
+      row[row.length - 1] = System.currentTimeMillis() - start;
+      return row;
+   }
+
+   /*
+      Gives world fresh copies of the base world's entities with the
+      variation applied.  Miners beyond the base world's own are placed
+      next to existing ones, round robin.
+   */
+   private void populate(WorldModel world, int[] variation)
+   {
+      int miners = variation[MINERS];
+      List<Entity> baseMiners = new ArrayList<>();
+
+      for (Entity entity : base.entities)
+      {
+         if (entity.kind == EntityKind.MINER_NOT_FULL)
+         {
+            baseMiners.add(entity);
+            if (miners != UNSET && baseMiners.size() > miners)
+            {
+               continue;
+            }
+         }
+         world.addEntity(copy(entity, entity.position, entity.getId(),
+            variation));
+      }
+
+      int added = 0;
+      boolean placed = true;
+      while (miners != UNSET && baseMiners.size() + added < miners && placed)
+      {
+         placed = false;
+         for (Entity miner : baseMiners)
+         {
+            Optional<Point> open = world.findOpenAround(miner.position);
+            if (open.isPresent() && baseMiners.size() + added < miners)
+            {
+               world.addEntity(copy(miner, open.get(),
+                  miner.getId() + "-" + added, variation));
+               added++;
+               placed = true;
+            }
+         }
+      }
+   }
+
+   private Entity copy(Entity entity, Point pos, String id, int[] variation)
+   {
+      switch (entity.kind)
+      {
+         case MINER_NOT_FULL:
+            return pos.createMinerNotFull(id,
+               variation[RESOURCE_LIMIT] == UNSET ? entity.getResourceLimit()
+                  : variation[RESOURCE_LIMIT],
+               entity.getActionPeriod(), entity.getAnimationPeriod(),
+               entity.images);
+         case VEIN:
+            return pos.createVein(id,
+               variation[VEIN_PERIOD] == UNSET ? entity.getActionPeriod()
+                  : variation[VEIN_PERIOD],
+               entity.images);
+         case ORE:
+            return pos.createOre(id, entity.getActionPeriod(), entity.images);
+         case BLACKSMITH:
+            return pos.createBlacksmith(id, entity.images);
+         case OBSTACLE:
+            return pos.createObstacle(id, entity.images);
+         default:
+            throw new UnsupportedOperationException(
+               String.format("cannot copy a %s into a batch run",
+                  entity.kind));
+      }
+   }
+
+   private void write(String filename)
+      throws IOException
+   {
+      try (PrintWriter out = new PrintWriter(filename))
+      {
+         for (int p = 0; p < PARAMETERS.length; p++)
+         {
+            out.print(PARAMETERS[p]);
+            for (int[] run : runs)
+            {
+               out.print('\t');
+               out.print(run[p]);
+            }
+            out.println();
+         }
+
+         int columns = results.length == 0 ? 0 : results[0].length;
+         for (int c = 0; c < columns; c++)
+         {
+            out.print(columnName(c));
+            for (long[] row : results)
+            {
+               out.print('\t');
+               out.print(row[c]);
+            }
+            out.println();
+         }
+      }
+   }
+
+   private static String columnName(int column)
+   {
+      EntityKind[] kinds = EntityKind.values();
+      if (column < kinds.length)
+      {
+         return kinds[column].name().toLowerCase();
+      }
+      return column == kinds.length ? "queued" : "wallms";
+   }
+}
@@ -0,0 +1,465 @@
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Scanner;
+import java.util.Set;
+
+/*
+   A world made of CHUNK_SIZE x CHUNK_SIZE chunks that are loaded lazily
+   from a chunked save directory once any of their cells is wanted: by an
+   entity moving in, a search, or the viewport scrolling over them.  Until
+   then those cells count as outside the world.  Chunks are only loaded
+   and dropped by page, between ticks, so nothing changes under an
+   activity that happens to look at a new chunk.
+
+   At most maxChunks stay resident; beyond that the least recently used
+   chunk whose entities the save format can all describe is written back
+   to its file and dropped, entities included.  Their pending events go
+   to a file beside it, at the times they were due, and are queued again
+   when the chunk comes back.  Chunks holding miners carrying ore, blobs
+   or quakes stay resident until those move on.
+
+   Evicted entities are invisible to findNearest until their chunk is
+   loaded again, which is the price of a fixed heap.  The grid is not
+   thread-safe, so it is only used with a single simulation thread.
+*/
+final class ChunkedWorldGrid
+   implements WorldGrid
+{
+   public static final int CHUNK_SIZE = 64;
+   private static final String META_FILE = "world.properties";
+   private static final String ROWS_KEY = "rows";
+   private static final String COLS_KEY = "cols";
+   private static final String CHUNK_FILE_FORMAT = "chunk_%d_%d.sav";
+   private static final String EVENTS_FILE_FORMAT = "chunk_%d_%d.events";
+   // x y kind time repeatCount
+   private static final String EVENT_LINE_FORMAT = "%d %d %s %d %d";
+   private static final String BGND_LINE_FORMAT = "background %s %d %d";
+
+   // every save entry keeps its column and row in the same place
+   private static final int ENTRY_COL = 2;
+   private static final int ENTRY_ROW = 3;
+
+   private final Path directory;
+   private final int numRows;
+   private final int numCols;
+   private final int maxChunks;
+   private final Background defaultBackground;
+   private final LinkedHashMap<Long, WorldChunk> chunks =
+      new LinkedHashMap<>(16, 0.75f, true);
+   // chunks read while not resident, to load at the next page
+   private final Set<Long> wanted = new LinkedHashSet<>();
+
+   private WorldModel world;
+   private ImageStore imageStore;
+   private long loads;
+   private long evictions;
+
+   public ChunkedWorldGrid(Path directory, int maxChunks,
+      Background defaultBackground)
+      throws IOException
+   {
+      Properties meta = new Properties();
+      try (InputStream in = new FileInputStream(
+         directory.resolve(META_FILE).toFile()))
+      {
+         meta.load(in);
+      }
+      this.directory = directory;
+      this.numRows = Integer.parseInt(meta.getProperty(ROWS_KEY));
+      this.numCols = Integer.parseInt(meta.getProperty(COLS_KEY));
+      this.maxChunks = maxChunks;
+      this.defaultBackground = defaultBackground;
+   }
+
+   /*
+      Chunks parse entities into the world they belong to, so the grid
+      needs the world and image store once both exist.
+   */
+   public void attach(WorldModel world, ImageStore imageStore)
+   {
+      this.world = world;
+      this.imageStore = imageStore;
+   }
+
+   public int getNumRows()
+   {
+      return numRows;
+   }
+
+   public int getNumCols()
+   {
+      return numCols;
+   }
+
+   public int getResidentChunks()
+   {
+      return chunks.size();
+   }
+
+   public long getLoads()
+   {
+      return loads;
+   }
+
+   public long getEvictions()
+   {
+      return evictions;
+   }
+
+   /* a miss asks for the chunk to be loaded at the next page */
+   public boolean isResident(Point pos)
+   {
+      long key = key(pos.x / CHUNK_SIZE, pos.y / CHUNK_SIZE);
+      if (chunks.get(key) != null)
+      {
+         return true;
+      }
+      wanted.add(key);
+      return false;
+   }
+
+   public Entity getOccupant(Point pos)
+   {
+      return chunkAt(pos).occupants[offset(pos)];
+   }
+
+   public void setOccupant(Point pos, Entity entity)
+   {
+      chunkAt(pos).occupants[offset(pos)] = entity;
+   }
+
+   public Background getBackground(Point pos)
+   {
+      return chunkAt(pos).backgrounds[offset(pos)];
+   }
+
+   public void setBackground(Point pos, Background background)
+   {
+      chunkAt(pos).backgrounds[offset(pos)] = background;
+   }
+
+   /*
+      Asks for every chunk overlapping the given region to be loaded at
+      the next page.
+   */
+   public void touch(int col, int row, int cols, int rows)
+   {
+      for (int y = row; y < Math.min(row + rows, numRows); y += CHUNK_SIZE)
+      {
+         for (int x = col; x < Math.min(col + cols, numCols); x += CHUNK_SIZE)
+         {
+            isResident(new Point(x, y));
+         }
+      }
+   }
+
+   /*
+      Loads the chunks wanted since the last page, queueing their
+      entities' events on scheduler, then drops chunks over budget.  Only
+      called between ticks.
+   */
+   public void page(EventScheduler scheduler)
+   {
+      // loading calls back into the world, which may want more
+      List<Long> keys = new ArrayList<>(wanted);
+      wanted.clear();
+      for (long key : keys)
+      {
+         if (!chunks.containsKey(key))
+         {
+            load((int)key, (int)(key >> 32), scheduler);
+         }
+      }
+      evictIfNeeded(scheduler);
+   }
+
+   private static int offset(Point pos)
+   {
+      return (pos.y % CHUNK_SIZE) * CHUNK_SIZE + pos.x % CHUNK_SIZE;
+   }
+
+   private static long key(int chunkCol, int chunkRow)
+   {
+      return ((long)chunkRow << 32) | (chunkCol & 0xffffffffL);
+   }
+
+   private WorldChunk chunkAt(Point pos)
+   {
+      WorldChunk chunk = chunks.get(key(pos.x / CHUNK_SIZE,
+         pos.y / CHUNK_SIZE));
+      if (chunk == null)
+      {
+         throw new IllegalStateException(String.format(
+            "cell %d,%d is not resident", pos.x, pos.y));
+      }
+      return chunk;
+   }
+
+   private void load(int chunkCol, int chunkRow, EventScheduler scheduler)
+   {
+      WorldChunk chunk = new WorldChunk(chunkCol, chunkRow, CHUNK_SIZE,
+         defaultBackground);
+      // resident before parsing, since adding entities reads its cells
+      chunks.put(key(chunkCol, chunkRow), chunk);
+      loads++;
+
+      Path file = chunkFile(chunkCol, chunkRow);
+      if (!Files.exists(file))
+      {
+         return;
+      }
+      try (Scanner in = new Scanner(file, StandardCharsets.UTF_8.name()))
+      {
+         world.load(in, imageStore);
+      }
+      catch (IOException e)
+      {
+         throw new UncheckedIOException(e);
+      }
+
+      Set<Entity> restored = restoreEvents(chunk, scheduler);
+      for (Entity entity : chunk.occupants)
+      {
+         if (entity != null && !restored.contains(entity))
+         {
+            entity.scheduleActions(scheduler, world, imageStore);
+         }
+      }
+   }
+
+   /*
+      Queues the events saved with a chunk again, at their old times, and
+      returns the entities that had any.  The file is used up: a chunk
+      that is still resident when the program ends leaves no stale events
+      for its next load.
+   */
+   private Set<Entity> restoreEvents(WorldChunk chunk,
+      EventScheduler scheduler)
+   {
+      Set<Entity> restored = new HashSet<>();
+      Path file = eventsFile(chunk.chunkCol, chunk.chunkRow);
+      if (!Files.exists(file))
+      {
+         return restored;
+      }
+      try
+      {
+         for (String line : Files.readAllLines(file, StandardCharsets.UTF_8))
+         {
+            String[] fields = line.split(" ");
+            Point pos = new Point(Integer.parseInt(fields[0]),
+               Integer.parseInt(fields[1]));
+            Entity entity = chunk.occupants[offset(pos)];
+            if (entity == null)
+            {
+               continue;
+            }
+            ActionKind kind = ActionKind.valueOf(fields[2]);
+            Action action = kind == ActionKind.ANIMATION
+               ? entity.createAnimationAction(Integer.parseInt(fields[4]))
+               : entity.createActivityAction(world, imageStore);
+            scheduler.scheduleAt(entity, action, Long.parseLong(fields[3]));
+            restored.add(entity);
+         }
+         Files.delete(file);
+      }
+      catch (IOException e)
+      {
+         throw new UncheckedIOException(e);
+      }
+      return restored;
+   }
+
+   private void evictIfNeeded(EventScheduler scheduler)
+   {
+      // chosen up front: evicting reads cells, which reorders chunks
+      List<WorldChunk> victims = new ArrayList<>();
+      int excess = chunks.size() - maxChunks;
+      for (WorldChunk chunk : chunks.values())
+      {
+         if (victims.size() >= excess)
+         {
+            break;
+         }
+         if (isEvictable(chunk))
+         {
+            victims.add(chunk);
+         }
+      }
+
+      for (WorldChunk chunk : victims)
+      {
+         save(chunk);
+         for (Entity entity : chunk.occupants)
+         {
+            if (entity != null)
+            {
+               scheduler.unscheduleAllEvents(entity);
+               world.evictEntity(entity);
+            }
+         }
+         chunks.remove(key(chunk.chunkCol, chunk.chunkRow));
+         evictions++;
+      }
+   }
+
+   private boolean isEvictable(WorldChunk chunk)
+   {
+      for (Entity entity : chunk.occupants)
+      {
+         if (entity != null && !world.canEvict(entity))
+         {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private void save(WorldChunk chunk)
+   {
+      Path file = chunkFile(chunk.chunkCol, chunk.chunkRow);
+      try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8))
+      {
+         int baseCol = chunk.chunkCol * CHUNK_SIZE;
+         int baseRow = chunk.chunkRow * CHUNK_SIZE;
+         for (int i = 0; i < chunk.backgrounds.length; i++)
+         {
+            if (chunk.backgrounds[i] != defaultBackground)
+            {
+               out.write(String.format(BGND_LINE_FORMAT,
+                  chunk.backgrounds[i].getId(), baseCol + i % CHUNK_SIZE,
+                  baseRow + i / CHUNK_SIZE));
+               out.write(System.lineSeparator());
+            }
+         }
+         for (Entity entity : chunk.occupants)
+         {
+            if (entity != null)
+            {
+               out.write(WorldModel.formatEntity(entity));
+               out.write(System.lineSeparator());
+            }
+         }
+      }
+      catch (IOException e)
+      {
+         throw new UncheckedIOException(e);
+      }
+      saveEvents(chunk);
+   }
+
+   private void saveEvents(WorldChunk chunk)
+   {
+      List<String> lines = new ArrayList<>();
+      for (Entity entity : chunk.occupants)
+      {
+         if (entity == null)
+         {
+            continue;
+         }
+         for (Event event = entity.pendingEvents; event != null;
+              event = event.nextPending)
+         {
+            lines.add(String.format(EVENT_LINE_FORMAT, entity.position.x,
+               entity.position.y, event.action.kind.name(), event.time,
+               event.action.repeatCount));
+         }
+      }
+
+      Path file = eventsFile(chunk.chunkCol, chunk.chunkRow);
+      try
+      {
+         if (lines.isEmpty())
+         {
+            Files.deleteIfExists(file);
+         }
+         else
+         {
+            Files.write(file, lines, StandardCharsets.UTF_8);
+         }
+      }
+      catch (IOException e)
+      {
+         throw new UncheckedIOException(e);
+      }
+   }
+
+   private Path chunkFile(int chunkCol, int chunkRow)
+   {
+      return directory.resolve(String.format(CHUNK_FILE_FORMAT, chunkCol,
+         chunkRow));
+   }
+
+   private Path eventsFile(int chunkCol, int chunkRow)
+   {
+      return directory.resolve(String.format(EVENTS_FILE_FORMAT, chunkCol,
+         chunkRow));
+   }
+
+   /*
+      Splits a flat save file into a chunked save directory that this
+      grid can page from.
+   */
+   public static void writeChunks(Scanner save, Path directory)
+      throws IOException
+   {
+      Files.createDirectories(directory);
+      Map<Long, List<String>> lines = new HashMap<>();
+      int cols = 0;
+      int rows = 0;
+
+      while (save.hasNextLine())
+      {
+         String line = save.nextLine();
+         String[] properties = line.split("\\s");
+         if (properties.length > ENTRY_ROW)
+         {
+            try
+            {
+               int col = Integer.parseInt(properties[ENTRY_COL]);
+               int row = Integer.parseInt(properties[ENTRY_ROW]);
+               cols = Math.max(cols, col + 1);
+               rows = Math.max(rows, row + 1);
+               lines.computeIfAbsent(key(col / CHUNK_SIZE, row / CHUNK_SIZE),
+                  k -> new ArrayList<>()).add(line);
+            }
+            catch (NumberFormatException e)
+            {
+               System.err.println(String.format("skipping %s", line));
+            }
+         }
+      }
+
+      for (Map.Entry<Long, List<String>> entry : lines.entrySet())
+      {
+         int chunkCol = (int)(long)entry.getKey();
+         int chunkRow = (int)(entry.getKey() >> 32);
+         Files.write(directory.resolve(String.format(CHUNK_FILE_FORMAT,
+            chunkCol, chunkRow)), entry.getValue(), StandardCharsets.UTF_8);
+      }
+
+      try (BufferedWriter out = Files.newBufferedWriter(
+         directory.resolve(META_FILE), StandardCharsets.UTF_8))
+      {
+         Properties meta = new Properties();
+         meta.setProperty(ROWS_KEY, Integer.toString(rows));
+         meta.setProperty(COLS_KEY, Integer.toString(cols));
+         meta.store(out, null);
+      }
+   }
+}
@@ -0,0 +1,74 @@
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+   Cell storage that several threads can update at once.  Every cell is
+   an atomic slot, and claimOccupant/releaseOccupant are compare-and-set,
+   so two threads can never both take a cell and a thread can only clear
+   a cell that still holds the entity it expects.
+*/
+final class ConcurrentWorldGrid
+   implements WorldGrid
+{
+   private final int numRows;
+   private final int numCols;
+   private final AtomicReferenceArray<Entity> occupants;
+   private final AtomicReferenceArray<Background> backgrounds;
+
+   public ConcurrentWorldGrid(int numRows, int numCols,
+      Background defaultBackground)
+   {
+      this.numRows = numRows;
+      this.numCols = numCols;
+      this.occupants = new AtomicReferenceArray<>(numRows * numCols);
+      this.backgrounds = new AtomicReferenceArray<>(numRows * numCols);
+      for (int i = 0; i < numRows * numCols; i++)
+      {
+         backgrounds.lazySet(i, defaultBackground);
+      }
+   }
+
+   public int getNumRows()
+   {
+      return numRows;
+   }
+
+   public int getNumCols()
+   {
+      return numCols;
+   }
+
+   public Entity getOccupant(Point pos)
+   {
+      return occupants.get(index(pos));
+   }
+
+   public void setOccupant(Point pos, Entity entity)
+   {
+      occupants.set(index(pos), entity);
+   }
+
+   public boolean claimOccupant(Point pos, Entity entity)
+   {
+      return occupants.compareAndSet(index(pos), null, entity);
+   }
+
+   public boolean releaseOccupant(Point pos, Entity entity)
+   {
+      return occupants.compareAndSet(index(pos), entity, null);
+   }
+
+   public Background getBackground(Point pos)
+   {
+      return backgrounds.get(index(pos));
+   }
+
+   public void setBackground(Point pos, Background background)
+   {
+      backgrounds.set(index(pos), background);
+   }
+
+   private int index(Point pos)
+   {
+      return pos.y * numCols + pos.x;
+   }
+}
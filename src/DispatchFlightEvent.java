@@ -0,0 +1,30 @@
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/*
+   Flight Recorder event for one scheduler event firing.  Millions fire a
+   minute, so by default only those taking a millisecond or more are
+   recorded; a recording's settings can lower the threshold.
+*/
+@Name("virtualworld.Dispatch")
+@Label("Event Dispatch")
+@Category("Virtual World")
+@StackTrace(false)
+@Threshold("1 ms")
+final class DispatchFlightEvent
+   extends jdk.jfr.Event
+{
+   @Label("Action")
+   String action;
+
+   @Label("Entity Kind")
+   String entityKind;
+
+   @Label("Lateness")
+   @Timespan(Timespan.MILLISECONDS)
+   long lateness;
+}
@@ -1,3 +1,6 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.List;
 import java.util.Optional;
 
@@ -16,6 +19,22 @@ final class Entity
     private int resourceCount;
     private int actionPeriod;
     private int animationPeriod;
+    private Action activityAction;
+    private Action animationAction;
+    // set while the world holds this entity parked instead of polling
+    public boolean parked;
+    public EntityKind wakeKind;
+    // head of this entity's pending events, linked through the events
+    public Event pendingEvents;
+    // ore reserved by this miner, and the miner that reserved this ore
+    public Entity claim;
+    public Entity claimant;
+    // cached destination (blacksmith or vein), kept current by the world
+    public Entity target;
+    // slot in an OffHeapWorldGrid's entity table (0 when not on one)
+    public int gridHandle;
+    // when the world last added this entity, which orders world.entities
+    public long worldOrder;
     private static final String BLOB_ID_SUFFIX = " -- blob";
     private static final int BLOB_PERIOD_SCALE = 4;
     private static final int BLOB_ANIMATION_MIN = 50;
@@ -46,6 +65,102 @@ final class Entity
    }
 
 
+   /*
+      A copy for a forked world: the same state, but no events or cached
+      actions yet, and claim, claimant and target still pointing at
+      entities of the original world until the fork remaps them.
+   */
+   public Entity copy()
+   {
+      Entity copy = new Entity(kind, id, position, images, resourceLimit,
+              resourceCount, actionPeriod, animationPeriod);
+      copy.imageIndex = imageIndex;
+      copy.parked = parked;
+      copy.wakeKind = wakeKind;
+      copy.claim = claim;
+      copy.claimant = claimant;
+      copy.target = target;
+      copy.worldOrder = worldOrder;
+      return copy;
+   }
+
+   /*
+      Writes what a shard needs to recreate this entity elsewhere; its
+      pending events travel separately.
+   */
+   public void writeTo(DataOutput out)
+           throws IOException
+   {
+      out.writeByte(kind.ordinal());
+      out.writeUTF(id);
+      out.writeInt(position.x);
+      out.writeInt(position.y);
+      out.writeShort(imageIndex);
+      out.writeInt(resourceLimit);
+      out.writeInt(resourceCount);
+      out.writeInt(actionPeriod);
+      out.writeInt(animationPeriod);
+   }
+
+   public static Entity readFrom(DataInput in, ImageStore imageStore)
+           throws IOException
+   {
+      EntityKind kind = EntityKind.values()[in.readByte()];
+      String id = in.readUTF();
+      Point position = new Point(in.readInt(), in.readInt());
+      int imageIndex = in.readShort();
+      Entity entity = new Entity(kind, id, position,
+              imageStore.getImageList(imageKey(kind)), in.readInt(),
+              in.readInt(), in.readInt(), in.readInt());
+      entity.imageIndex = imageIndex % entity.images.size();
+      return entity;
+   }
+
+   public static String imageKey(EntityKind kind)
+   {
+      switch (kind)
+      {
+         case BLACKSMITH:
+            return WorldModel.SMITH_KEY;
+         case MINER_FULL:
+         case MINER_NOT_FULL:
+            return WorldModel.MINER_KEY;
+         case OBSTACLE:
+            return WorldModel.OBSTACLE_KEY;
+         case ORE:
+            return ORE_KEY;
+         case ORE_BLOB:
+            return BLOB_KEY;
+         case QUAKE:
+            return QUAKE_KEY;
+         case VEIN:
+            return WorldModel.VEIN_KEY;
+         default:
+            throw new UnsupportedOperationException(
+                    String.format("imageKey not supported for %s", kind));
+      }
+   }
+
+   public String getId()
+   {
+      return id;
+   }
+
+   public int getResourceLimit()
+   {
+      return resourceLimit;
+   }
+
+   public int getResourceCount()
+   {
+      return resourceCount;
+   }
+
+   public int getActionPeriod()
+   {
+      return actionPeriod;
+   }
+
    public int getAnimationPeriod()
    {
       switch (kind)
@@ -70,11 +185,15 @@ final class Entity
    public void executeMinerFullActivity(WorldModel world,
                                                ImageStore imageStore, EventScheduler scheduler)
    {
-      Optional<Entity> fullTarget = world.findNearest(position,
+      Optional<Entity> fullTarget = world.findNearestCached(this,
               EntityKind.BLACKSMITH);
+      int steps = scheduler.coarseSteps(position);
 
-      if (fullTarget.isPresent() &&
-              moveToFull(world, fullTarget.get(), scheduler))
+      if (!fullTarget.isPresent())
+      {
+         world.parkUntilAdded(this, EntityKind.BLACKSMITH);
+      }
+      else if (moveToFull(world, fullTarget.get(), scheduler, steps))
       {
          transformFull( world, scheduler, imageStore);
       }
@@ -82,22 +201,25 @@ final class Entity
       {
          scheduler.scheduleEvent(this,
                  createActivityAction(world, imageStore),
-                 actionPeriod);
+                 (long)actionPeriod * steps);
       }
    }
 
    public void executeMinerNotFullActivity(WorldModel world, ImageStore imageStore, EventScheduler scheduler)
    {
-      Optional<Entity> notFullTarget = world.findNearest( position,
-              EntityKind.ORE);
+      Optional<Entity> notFullTarget = world.claimedOre(this);
+      int steps = scheduler.coarseSteps(position);
 
-      if (!notFullTarget.isPresent() ||
-              !moveToNotFull( world, notFullTarget.get(), scheduler) ||
+      if (!notFullTarget.isPresent())
+      {
+         world.parkUntilAdded(this, EntityKind.ORE);
+      }
+      else if (!moveToNotFull( world, notFullTarget.get(), scheduler, steps) ||
               !transformNotFull(world, scheduler, imageStore))
       {
          scheduler.scheduleEvent(this,
                  createActivityAction(world, imageStore),
-                 actionPeriod);
+                 (long)actionPeriod * steps);
       }
    }
 
@@ -107,10 +229,11 @@ final class Entity
       Point pos = position;  // store current position before removing
 
       world.removeEntity(this);
+      scheduler.unscheduleAllEvents(this);
 
       Entity blob = pos.createOreBlob(id + BLOB_ID_SUFFIX, actionPeriod / BLOB_PERIOD_SCALE,
               BLOB_ANIMATION_MIN +
-                      Functions.rand.nextInt(BLOB_ANIMATION_MAX - BLOB_ANIMATION_MIN),
+                      world.getRandom().nextInt(BLOB_ANIMATION_MAX - BLOB_ANIMATION_MIN),
               imageStore.getImageList(BLOB_KEY));
 
       world.addEntity(blob);
@@ -120,23 +243,27 @@ final class Entity
    public void executeOreBlobActivity( WorldModel world,
                                              ImageStore imageStore, EventScheduler scheduler)
    {
-      Optional<Entity> blobTarget = world.findNearest(
-              position, EntityKind.VEIN);
-      long nextPeriod = actionPeriod;
+      Optional<Entity> blobTarget = world.findNearestCached(this,
+              EntityKind.VEIN);
+      int steps = scheduler.coarseSteps(position);
+      long nextPeriod = (long)actionPeriod * steps;
 
-      if (blobTarget.isPresent())
+      if (!blobTarget.isPresent())
       {
-         Point tgtPos = blobTarget.get().position;
+         world.parkUntilAdded(this, EntityKind.VEIN);
+         return;
+      }
+
+      Point tgtPos = blobTarget.get().position;
 
-         if (moveToOreBlob(world, blobTarget.get(), scheduler))
-         {
-            Entity quake = tgtPos.createQuake(
-                    imageStore.getImageList(QUAKE_KEY));
+      if (moveToOreBlob(world, blobTarget.get(), scheduler, steps))
+      {
+         Entity quake = tgtPos.createQuake(
+                 imageStore.getImageList(QUAKE_KEY));
 
-            world.addEntity(quake);
-            nextPeriod += actionPeriod;
-            quake.scheduleActions(scheduler, world, imageStore);
-         }
+         world.addEntity(quake);
+         nextPeriod += actionPeriod;
+         quake.scheduleActions(scheduler, world, imageStore);
       }
 
       scheduler.scheduleEvent(this,
@@ -154,20 +281,32 @@ final class Entity
    public void executeVeinActivity( WorldModel world,
                                           ImageStore imageStore, EventScheduler scheduler)
    {
+      // out of focus, several spawns are batched into one activity
+      int steps = scheduler.coarseSteps(position);
+      int spawned = 0;
       Optional<Point> openPt = world.findOpenAround(position);
 
-      if (openPt.isPresent())
+      while (openPt.isPresent())
       {
          Entity ore = openPt.get().createOre(ORE_ID_PREFIX + id,ORE_CORRUPT_MIN +
-                         Functions.rand.nextInt(ORE_CORRUPT_MAX - ORE_CORRUPT_MIN),
+                         world.getRandom().nextInt(ORE_CORRUPT_MAX - ORE_CORRUPT_MIN),
                  imageStore.getImageList(ORE_KEY));
          world.addEntity( ore);
          ore.scheduleActions(scheduler, world, imageStore);
+
+         openPt = ++spawned < steps ? world.findOpenAround(position)
+                 : Optional.empty();
+      }
+
+      if (spawned == 0)
+      {
+         world.parkUntilFreed(this);
+         return;
       }
 
       scheduler.scheduleEvent( this,
               createActivityAction(world, imageStore),
-              actionPeriod);
+              (long)actionPeriod * steps);
    }
 
    public void scheduleActions(EventScheduler scheduler,
@@ -257,7 +396,8 @@ final class Entity
     }
 
     private boolean moveToNotFull(WorldModel world,
-                                        Entity target, EventScheduler scheduler)
+                                        Entity target, EventScheduler scheduler,
+                                        int steps)
     {
         if (position.adjacent(target.position))
         {
@@ -269,10 +409,16 @@ final class Entity
         }
         else
         {
-            Point nextPos = nextPositionMiner(world, target.position);
-
-            if (!position.equals(nextPos))
+            for (int step = 0; step < steps &&
+                    !position.adjacent(target.position); step++)
             {
+                Point nextPos = nextPositionMiner(world, position, target.position);
+
+                if (position.equals(nextPos))
+                {
+                    break;
+                }
+
                 Optional<Entity> occupant = world.getOccupant(nextPos);
                 if (occupant.isPresent())
                 {
@@ -286,7 +432,8 @@ final class Entity
     }
 
     private boolean moveToFull(WorldModel world,
-                                     Entity target, EventScheduler scheduler)
+                                     Entity target, EventScheduler scheduler,
+                                        int steps)
     {
         if (position.adjacent(target.position))
         {
@@ -294,10 +441,16 @@ final class Entity
         }
         else
         {
-            Point nextPos = nextPositionMiner(world, target.position);
-
-            if (!position.equals(nextPos))
+            for (int step = 0; step < steps &&
+                    !position.adjacent(target.position); step++)
             {
+                Point nextPos = nextPositionMiner(world, position, target.position);
+
+                if (position.equals(nextPos))
+                {
+                    break;
+                }
+
                 Optional<Entity> occupant = world.getOccupant(nextPos);
                 if (occupant.isPresent())
                 {
@@ -312,7 +465,8 @@ final class Entity
 
 
     private boolean moveToOreBlob(WorldModel world,
-                                        Entity target, EventScheduler scheduler)
+                                        Entity target, EventScheduler scheduler,
+                                        int steps)
     {
         if (position.adjacent(target.position))
         {
@@ -322,10 +476,16 @@ final class Entity
         }
         else
         {
-            Point nextPos = nextPositionOreBlob( world, target.position);
-
-            if (!this.position.equals(nextPos))
+            for (int step = 0; step < steps &&
+                    !position.adjacent(target.position); step++)
             {
+                Point nextPos = nextPositionOreBlob(world, position, target.position);
+
+                if (position.equals(nextPos))
+                {
+                    break;
+                }
+
                 Optional<Entity> occupant = world.getOccupant(nextPos);
                 if (occupant.isPresent())
                 {
@@ -338,7 +498,7 @@ final class Entity
         }
     }
 
-    private Point nextPositionMiner(WorldModel world,
+    private static Point nextPositionMiner(WorldModel world, Point position,
                                           Point destPos)
     {
         int horiz = Integer.signum(destPos.x - position.x);
@@ -360,7 +520,7 @@ final class Entity
         return newPos;
     }
 
-    private Point nextPositionOreBlob(WorldModel world,
+    private static Point nextPositionOreBlob(WorldModel world, Point position,
                                             Point destPos)
     {
         int horiz = Integer.signum(destPos.x - position.x);
@@ -385,15 +545,153 @@ final class Entity
         return newPos;
     }
 
+    /*
+       Works out, without changing anything, what this mover's next
+       activity would do if all it does is walk toward its target.
+       Returns false for any other outcome (arriving, mining, parking),
+       which is left to running the activity normally.  The cells looked
+       at are a superset of what the real activity reads: both neighbours
+       toward the target on every step, plus the target's own cell.
+    */
+    public boolean planActivity(WorldModel world, int steps,
+                                ActivityPlan plan)
+    {
+        plan.entity = this;
+        plan.start = position;
+        plan.steps = steps;
+        plan.cachedTarget = target;
+
+        if (kind == EntityKind.MINER_NOT_FULL)
+        {
+            if (claim == null)
+            {
+                return false;
+            }
+            plan.target = claim;
+        }
+        else
+        {
+            EntityKind targetKind;
+            if (kind == EntityKind.MINER_FULL)
+            {
+                targetKind = EntityKind.BLACKSMITH;
+            }
+            else if (kind == EntityKind.ORE_BLOB)
+            {
+                targetKind = EntityKind.VEIN;
+            }
+            else
+            {
+                return false;
+            }
+
+            if (target != null && target.kind == targetKind)
+            {
+                plan.target = target;
+            }
+            else
+            {
+                plan.kindVersion = world.getKindVersion(targetKind);
+                NearestSearch search = world.searchNearest(position,
+                        targetKind);
+                if (!search.nearest.isPresent())
+                {
+                    return false;
+                }
+                plan.target = search.nearest.get();
+                plan.searched = true;
+                plan.scanned = search.scanned;
+            }
+        }
+
+        Point destPos = plan.target.position;
+        plan.reads.add(destPos);
+        if (position.adjacent(destPos))
+        {
+            return false;
+        }
+
+        Point pos = position;
+        for (int step = 0; step < steps && !pos.adjacent(destPos); step++)
+        {
+            plan.reads.add(new Point(pos.x + Integer.signum(destPos.x - pos.x),
+                    pos.y));
+            plan.reads.add(new Point(pos.x,
+                    pos.y + Integer.signum(destPos.y - pos.y)));
+
+            Point nextPos = kind == EntityKind.ORE_BLOB
+                    ? nextPositionOreBlob(world, pos, destPos)
+                    : nextPositionMiner(world, pos, destPos);
+            if (pos.equals(nextPos))
+            {
+                break;
+            }
+            if (world.isOccupied(nextPos))
+            {
+                // a blob about to swallow ore
+                return false;
+            }
+
+            plan.path.add(nextPos);
+            pos = nextPos;
+        }
+        return true;
+    }
+
+    /*
+       Applies a plan from planActivity exactly as running the activity
+       would have, once the caller has checked it is still valid.
+    */
+    public void commitPlan(WorldModel world, ImageStore imageStore,
+                           EventScheduler scheduler, ActivityPlan plan)
+    {
+        if (plan.searched)
+        {
+            world.adoptTarget(this, plan.target, plan.scanned);
+        }
+        for (Point nextPos : plan.path)
+        {
+            world.moveEntity(this, nextPos);
+        }
+        scheduler.scheduleEvent(this, createActivityAction(world, imageStore),
+                (long)actionPeriod * plan.steps);
+    }
+
+    /*
+       Resumes the activity of an entity the world had parked.
+    */
+    public void wake(EventScheduler scheduler, WorldModel world,
+                     ImageStore imageStore)
+    {
+        scheduler.scheduleEvent(this, createActivityAction(world, imageStore),
+                actionPeriod);
+    }
+
+    /*
+       An entity has at most one pending animation and one pending activity
+       event at a time, so both actions are created once and reused.
+    */
     public Action createAnimationAction( int repeatCount)
     {
-        return new Action(ActionKind.ANIMATION, this, null, null, repeatCount);
+        if (animationAction == null)
+        {
+            animationAction = new Action(ActionKind.ANIMATION, this, null, null,
+                    repeatCount);
+        }
+        animationAction.repeatCount = repeatCount;
+        return animationAction;
     }
 
-    private Action createActivityAction( WorldModel world,
+    public Action createActivityAction( WorldModel world,
                                               ImageStore imageStore)
     {
-        return new Action(ActionKind.ACTIVITY, this, world, imageStore, 0);
+        if (activityAction == null || activityAction.world != world
+                || activityAction.imageStore != imageStore)
+        {
+            activityAction = new Action(ActionKind.ACTIVITY, this, world,
+                    imageStore, 0);
+        }
+        return activityAction;
     }
 
 
@@ -1,9 +1,20 @@
+
 final class Event
 {
    public Action action;
    public long time;
    public Entity entity;
 
+   /* intrusive links for the owning entity's pending list (and the free
+      list while the event sits in the scheduler's pool) */
+   public Event nextPending;
+   public Event prevPending;
+
+   /* slot in an IndexedEventHeap (-1 when not queued) and insertion order
+      for breaking ties between equal times */
+   public int heapIndex = -1;
+   public long sequence;
+
    public Event(Action action, long time, Entity entity)
    {
       this.action = action;
@@ -5,6 +5,8 @@ final class EventComparator
 {
    public int compare(Event lft, Event rht)
    {
-      return (int)(lft.time - rht.time);
+      // subtracting and casting to int misorders times ~24 days apart
+      int order = Long.compare(lft.time, rht.time);
+      return order != 0 ? order : Long.compare(lft.sequence, rht.sequence);
    }
 }
@@ -0,0 +1,24 @@
+import java.util.List;
+
+/*
+   Time-ordered queue of scheduled events.  Events with equal times come
+   out in the order they were added.
+*/
+interface EventQueue
+{
+   void add(Event event);
+
+   Event peek();
+
+   Event poll();
+
+   /* removes an event that may or may not still be queued */
+   void remove(Event event);
+
+   /* appends every queued event due strictly before time, in no order */
+   void collectDue(long time, List<Event> due);
+
+   int size();
+
+   boolean isEmpty();
+}
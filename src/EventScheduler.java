@@ -1,18 +1,248 @@
-import java.util.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 final class EventScheduler {
-    private PriorityQueue<Event> eventQueue;
-    private Map<Entity, List<Event>> pendingEvents;
-    private double timeScale;
+    private EventQueue eventQueue;
+    private Event freeEvents;
+    private long currentTime;
+    private SimulationMetrics metrics;
 
-    public EventScheduler(double timeScale) {
-        this.eventQueue = new PriorityQueue<>(new EventComparator());
-        this.pendingEvents = new HashMap<>();
-        this.timeScale = timeScale;
+    // drain limits for updateOnTime; zero means unbounded
+    private long drainBudgetNanos;
+    private int drainMaxEvents;
+    private boolean coalesceOverdue;
+    // events taken by the current updateOnTime
+    private int fired;
+    private long currentLateness;
+    private long lag;
+    private LevelOfDetail levelOfDetail;
+    private SpeculativeExecutor speculator;
+    private WorldObserver[] observers = new WorldObserver[0];
+
+    /*
+       Times are simulation time, which a SimulationClock maps wall-clock
+       time onto, so periods are queued as they are and the speed can
+       change without touching the queue.  startTime is the time events
+       are first scheduled against; afterwards the scheduler's notion of
+       "now" is the time passed to the latest updateOnTime.
+    */
+    public EventScheduler(long startTime) {
+        this(startTime, SchedulerKind.HEAP);
+    }
+
+    public EventScheduler(long startTime, SchedulerKind kind) {
+        this.eventQueue = kind == SchedulerKind.QUEUE
+                ? new PriorityEventQueue() : new IndexedEventHeap();
+        this.currentTime = startTime;
+    }
+
+    /*
+       A scheduler for a fork of the world this one drives, made with
+       WorldModel.fork: the same settings and clock, and a copy of every
+       pending event retargeted through copies.  Copies are queued in the
+       original order, so equal times still fire in the same order.  The
+       speculative executor's thread pool is not shared with forks.
+    */
+    public EventScheduler fork(WorldModel world, Map<Entity, Entity> copies)
+    {
+        EventScheduler fork = new EventScheduler(currentTime,
+                eventQueue instanceof PriorityEventQueue
+                        ? SchedulerKind.QUEUE : SchedulerKind.HEAP);
+        fork.metrics = metrics;
+        fork.drainBudgetNanos = drainBudgetNanos;
+        fork.drainMaxEvents = drainMaxEvents;
+        fork.coalesceOverdue = coalesceOverdue;
+        fork.lag = lag;
+        if (levelOfDetail != null)
+        {
+            fork.levelOfDetail = levelOfDetail.copy(copies);
+        }
+
+        List<Event> pending = new ArrayList<>(eventQueue.size());
+        eventQueue.collectDue(Long.MAX_VALUE, pending);
+        pending.sort(new EventComparator());
+        for (Event event : pending)
+        {
+            Entity entity = copies.get(event.entity);
+            if (entity == null)
+            {
+                continue;
+            }
+            Action action = event.action.kind == ActionKind.ANIMATION
+                    ? entity.createAnimationAction(event.action.repeatCount)
+                    : entity.createActivityAction(world,
+                            event.action.imageStore);
+            fork.scheduleAt(entity, action, event.time);
+        }
+        return fork;
+    }
+
+    public long getCurrentTime()
+    {
+        return currentTime;
+    }
+
+    public int getQueueDepth()
+    {
+        return eventQueue.size();
+    }
+
+    public int getPooledEventCount()
+    {
+        int count = 0;
+        for (Event event = freeEvents; event != null; event = event.nextPending)
+        {
+            count++;
+        }
+        return count;
+    }
+
+    /*
+       Counts queued events that belong to none of the given entities.
+       Anything non-zero means an entity left the world without its
+       events being unscheduled.
+    */
+    public int countOrphanedEvents(Iterable<Entity> entities)
+    {
+        int owned = 0;
+        for (Entity entity : entities)
+        {
+            for (Event event = entity.pendingEvents; event != null;
+                 event = event.nextPending)
+            {
+                owned++;
+            }
+        }
+        return eventQueue.size() - owned;
+    }
+
+    public void setMetrics(SimulationMetrics metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    public void setLevelOfDetail(LevelOfDetail levelOfDetail)
+    {
+        this.levelOfDetail = levelOfDetail;
+    }
+
+    /*
+       Plans each batch of due activities in parallel before firing it;
+       see SpeculativeExecutor.
+    */
+    public void setSpeculator(SpeculativeExecutor speculator)
+    {
+        this.speculator = speculator;
+    }
+
+    public SpeculativeExecutor getSpeculator()
+    {
+        return speculator;
+    }
+
+    /*
+       Observers are told when an animation advances a frame and when each
+       updateOnTime ends.  Forks start without observers.
+    */
+    public void addObserver(WorldObserver observer)
+    {
+        observers = Arrays.copyOf(observers, observers.length + 1);
+        observers[observers.length - 1] = observer;
+    }
+
+    /*
+       How many steps of work an activity at pos should do at once: one at
+       full fidelity, more where the level of detail is coarse.
+    */
+    public int coarseSteps(Point pos)
+    {
+        return levelOfDetail == null ? 1 : levelOfDetail.stepsAt(pos);
+    }
+
+    /*
+       Moves the level-of-detail focus, restarting the animations of
+       suspended entities that are now in it.
+    */
+    public void setFocus(int col, int row, int numCols, int numRows)
+    {
+        if (levelOfDetail != null &&
+                levelOfDetail.setFocus(col, row, numCols, numRows))
+        {
+            Iterator<Entity> suspended =
+                    levelOfDetail.getSuspended().iterator();
+            while (suspended.hasNext())
+            {
+                Entity entity = suspended.next();
+                if (levelOfDetail.isDetailed(entity.position))
+                {
+                    suspended.remove();
+                    resumeAnimation(entity);
+                }
+            }
+        }
+    }
+
+    private void resumeAnimation(Entity entity)
+    {
+        scheduleEvent(entity, entity.createAnimationAction(0),
+                entity.getAnimationPeriod());
+    }
+
+    /*
+       Limits a single updateOnTime call to roughly maxMillis of work or
+       maxEvents events, whichever comes first (zero disables a limit).
+       Anything still due is left in the queue for the next call.
+    */
+    public void setDrainBudget(long maxMillis, int maxEvents)
+    {
+        this.drainBudgetNanos = maxMillis * 1000000L;
+        this.drainMaxEvents = maxEvents;
+    }
+
+    /*
+       When enabled, an overdue animation advances by every frame it missed
+       in one step instead of resuming where it fell behind.  Activities
+       already reschedule relative to the time they run, so several missed
+       activity ticks collapse into one on their own.
+    */
+    public void setCoalesceOverdue(boolean coalesceOverdue)
+    {
+        this.coalesceOverdue = coalesceOverdue;
+    }
+
+    /*
+       How far behind the simulation was after the last updateOnTime: the
+       age in milliseconds of the oldest event still due, or zero.
+    */
+    public long getLag()
+    {
+        return lag;
     }
 
 
     private void executeAction(Action action) {
+        // free unless a recording has the event enabled
+        Object flight = FlightEvents.beginDispatch();
+        EntityKind kind = action.entity.kind;
+
+        if (metrics != null)
+        {
+            long start = System.nanoTime();
+            dispatchAction(action);
+            metrics.recordAction(action.kind, System.nanoTime() - start);
+        }
+        else
+        {
+            dispatchAction(action);
+        }
+
+        FlightEvents.endDispatch(flight, action.kind, kind, currentLateness);
+    }
+
+    private void dispatchAction(Action action) {
         switch (action.kind) {
             case ACTIVITY:
                 executeActivityAction(action);
@@ -26,17 +256,96 @@ final class EventScheduler {
 
     private void executeAnimationAction(Action action)
     {
-        action.entity.nextImage();
-        if (action.repeatCount != 1)
+        if (levelOfDetail != null &&
+                !levelOfDetail.isDetailed(action.entity.position))
+        {
+            // nobody is watching: stop animating until it is in focus
+            if (action.repeatCount == 0)
+            {
+                levelOfDetail.suspend(action.entity);
+            }
+            return;
+        }
+
+        int frames = 1;
+        if (coalesceOverdue && currentLateness > 0)
         {
-            this.scheduleEvent(action.entity,
-                    action.entity.createAnimationAction(Math.max(action.repeatCount - 1, 0)),
+            long period = Math.max(1, action.entity.getAnimationPeriod());
+            frames += (int)Math.min(currentLateness / period,
+                    action.entity.images.size());
+            if (action.repeatCount > 0)
+            {
+                frames = Math.min(frames, action.repeatCount);
+            }
+        }
+
+        for (int i = 0; i < frames; i++)
+        {
+            action.entity.nextImage();
+        }
+        for (WorldObserver observer : observers)
+        {
+            observer.entityAnimated(action.entity);
+        }
+
+        if (action.repeatCount == 0 || action.repeatCount > frames)
+        {
+            // the action is the entity's cached one, so count down in place
+            action.repeatCount = Math.max(action.repeatCount - frames, 0);
+            this.scheduleEvent(action.entity, action,
                     action.entity.getAnimationPeriod());
         }
     }
 
     private void executeActivityAction(Action action)
     {
+        if (metrics != null)
+        {
+            EntityKind kind = action.entity.kind;
+            long start = System.nanoTime();
+            dispatchActivity(action);
+            metrics.recordActivity(kind, System.nanoTime() - start);
+        }
+        else
+        {
+            dispatchActivity(action);
+        }
+
+        wakeParked(action.world, action.imageStore);
+
+        if (levelOfDetail != null &&
+                levelOfDetail.isSuspended(action.entity) &&
+                levelOfDetail.isDetailed(action.entity.position))
+        {
+            // walked back into focus
+            levelOfDetail.forget(action.entity);
+            resumeAnimation(action.entity);
+        }
+    }
+
+    /*
+       Reschedules entities whose wake condition the last activity
+       triggered.  Every world change happens inside an activity or when
+       chunks are paged between ticks, so checking here is enough: anyone
+       woken by paging is picked up after the next activity.
+    */
+    private void wakeParked(WorldModel world, ImageStore imageStore)
+    {
+        Entity sleeper = world.pollWoken();
+        while (sleeper != null)
+        {
+            sleeper.wake(this, world, imageStore);
+            sleeper = world.pollWoken();
+        }
+    }
+
+    private void dispatchActivity(Action action)
+    {
+        if (speculator != null && speculator.commit(action, this))
+        {
+            return;
+        }
+
         switch (action.entity.kind)
         {
             case MINER_FULL:
@@ -78,53 +387,171 @@ final class EventScheduler {
 
     public void scheduleEvent(Entity entity, Action action, long afterPeriod)
     {
-        long time = System.currentTimeMillis() +
-                (long)(afterPeriod * timeScale);
-        Event event = new Event(action, time, entity);
+        scheduleAt(entity, action, currentTime + afterPeriod);
+    }
+
+    /*
+       Schedules at an absolute time on this scheduler's clock, for events
+       carried over from another scheduler.
+    */
+    public void scheduleAt(Entity entity, Action action, long time)
+    {
+        Event event = obtainEvent(action, time, entity);
 
         eventQueue.add(event);
 
-        // update list of pending events for the given entity
-        List<Event> pending = pendingEvents.getOrDefault(entity,
-                new LinkedList<>());
-        pending.add(event);
-        pendingEvents.put(entity, pending);
+        // link into the list of pending events for the given entity
+        Event head = entity.pendingEvents;
+        event.prevPending = null;
+        event.nextPending = head;
+        if (head != null)
+        {
+            head.prevPending = event;
+        }
+        entity.pendingEvents = event;
+
+        if (metrics != null)
+        {
+            metrics.recordScheduled(eventQueue.size());
+        }
     }
 
     public void unscheduleAllEvents(Entity entity)
     {
-        List<Event> pending = pendingEvents.remove(entity);
+        long start = metrics != null ? System.nanoTime() : 0;
+        Event event = entity.pendingEvents;
+        entity.pendingEvents = null;
+        if (levelOfDetail != null)
+        {
+            levelOfDetail.forget(entity);
+        }
 
-        if (pending != null)
+        while (event != null)
         {
-            for (Event event : pending)
-            {
-                eventQueue.remove(event);
-            }
+            Event next = event.nextPending;
+            eventQueue.remove(event);
+            recycleEvent(event);
+            event = next;
+        }
+
+        if (metrics != null)
+        {
+            metrics.recordUnschedule(eventQueue.size(),
+                    System.nanoTime() - start);
         }
     }
 
 
     private void removePendingEvent(Event event)
     {
-        List<Event> pending = pendingEvents.get(event.entity);
+        if (event.prevPending != null)
+        {
+            event.prevPending.nextPending = event.nextPending;
+        }
+        else
+        {
+            event.entity.pendingEvents = event.nextPending;
+        }
 
-        if (pending != null)
+        if (event.nextPending != null)
         {
-            pending.remove(event);
+            event.nextPending.prevPending = event.prevPending;
         }
+        event.nextPending = null;
+        event.prevPending = null;
     }
 
-    public void updateOnTime( long time)
+    private Event obtainEvent(Action action, long time, Entity entity)
     {
-        while (!eventQueue.isEmpty() &&
-                eventQueue.peek().time < time)
+        Event event = freeEvents;
+        if (event == null)
         {
-            Event next = eventQueue.poll();
+            return new Event(action, time, entity);
+        }
+
+        freeEvents = event.nextPending;
+        event.nextPending = null;
+        event.action = action;
+        event.time = time;
+        event.entity = entity;
+        return event;
+    }
 
-            removePendingEvent(next);
+    private void recycleEvent(Event event)
+    {
+        event.action = null;
+        event.entity = null;
+        event.prevPending = null;
+        event.nextPending = freeEvents;
+        freeEvents = event;
+    }
+
+    public void updateOnTime( long time)
+    {
+        currentTime = time;
+        boolean timed = metrics != null || drainBudgetNanos > 0;
+        long start = timed ? System.nanoTime() : 0;
+        fired = 0;
+        if (speculator != null)
+        {
+            speculator.plan(eventQueue, time, this);
+        }
 
+        Event next = takeDue(time, start);
+        while (next != null)
+        {
             executeAction(next.action);
+
+            recycleEvent(next);
+            next = takeDue(time, start);
+        }
+        currentLateness = 0;
+        if (speculator != null)
+        {
+            speculator.finish();
+        }
+
+        lag = !eventQueue.isEmpty() && eventQueue.peek().time < time
+                ? time - eventQueue.peek().time : 0;
+        for (WorldObserver observer : observers)
+        {
+            observer.tickEnded(time);
+        }
+
+        if (metrics != null)
+        {
+            metrics.recordUpdate(fired, eventQueue.size(), lag,
+                    System.nanoTime() - start);
+        }
+    }
+
+    /*
+       The next event due before time, taken off the queue, or null when
+       there is none or the drain budget is spent.
+    */
+    private Event takeDue(long time, long start)
+    {
+        if (eventQueue.isEmpty() || eventQueue.peek().time >= time)
+        {
+            return null;
+        }
+        if ((drainMaxEvents > 0 && fired >= drainMaxEvents) ||
+                (drainBudgetNanos > 0 &&
+                        System.nanoTime() - start >= drainBudgetNanos))
+        {
+            return null;
+        }
+
+        Event next = eventQueue.poll();
+
+        removePendingEvent(next);
+
+        currentLateness = time - next.time;
+        if (metrics != null)
+        {
+            metrics.recordFired(currentLateness);
         }
+        fired++;
+        return next;
     }
 }
\ No newline at end of file
@@ -0,0 +1,142 @@
+/*
+   The one way in to the Flight Recorder events, so the simulation still
+   runs where jdk.jfr is missing (Java 8 before update 262).  Whether it is
+   there is probed once; without it every method here does nothing.  The
+   events are handed around as Object, because code that names their
+   types can fail to load on such a runtime even if it never makes one.
+*/
+final class FlightEvents
+{
+   private static final boolean AVAILABLE = probe();
+
+   private static boolean probe()
+   {
+      try
+      {
+         Class.forName("jdk.jfr.Event");
+         return true;
+      }
+      catch (ClassNotFoundException | LinkageError e)
+      {
+         return false;
+      }
+   }
+
+   public static Object beginDispatch()
+   {
+      if (!AVAILABLE)
+      {
+         return null;
+      }
+      DispatchFlightEvent flight = new DispatchFlightEvent();
+      flight.begin();
+      return flight;
+   }
+
+   public static void endDispatch(Object event, ActionKind action,
+      EntityKind entityKind, long lateness)
+   {
+      if (event == null)
+      {
+         return;
+      }
+      DispatchFlightEvent flight = (DispatchFlightEvent)event;
+      flight.end();
+      if (flight.shouldCommit())
+      {
+         flight.action = action.name();
+         flight.entityKind = entityKind.name();
+         flight.lateness = lateness;
+         flight.commit();
+      }
+   }
+
+   public static Object beginLoad()
+   {
+      if (!AVAILABLE)
+      {
+         return null;
+      }
+      LoadFlightEvent flight = new LoadFlightEvent();
+      flight.begin();
+      return flight;
+   }
+
+   public static void endLoad(Object event, String phase, int lines,
+      int invalid, int loaded)
+   {
+      if (event == null)
+      {
+         return;
+      }
+      LoadFlightEvent flight = (LoadFlightEvent)event;
+      flight.end();
+      if (flight.shouldCommit())
+      {
+         flight.phase = phase;
+         flight.lines = lines;
+         flight.invalid = invalid;
+         flight.loaded = loaded;
+         flight.commit();
+      }
+   }
+
+   public static Object beginSearch()
+   {
+      if (!AVAILABLE)
+      {
+         return null;
+      }
+      SearchFlightEvent flight = new SearchFlightEvent();
+      flight.begin();
+      return flight;
+   }
+
+   public static void endSearch(Object event, EntityKind kind, int scanned,
+      boolean indexed, boolean found)
+   {
+      if (event == null)
+      {
+         return;
+      }
+      SearchFlightEvent flight = (SearchFlightEvent)event;
+      flight.end();
+      if (flight.shouldCommit())
+      {
+         flight.kind = kind.name();
+         flight.scanned = scanned;
+         flight.indexed = indexed;
+         flight.found = found;
+         flight.commit();
+      }
+   }
+
+   public static Object beginFrame()
+   {
+      if (!AVAILABLE)
+      {
+         return null;
+      }
+      FrameFlightEvent flight = new FrameFlightEvent();
+      flight.begin();
+      return flight;
+   }
+
+   public static void endFrame(Object event, int zoom, boolean blitting,
+      boolean snapshot)
+   {
+      if (event == null)
+      {
+         return;
+      }
+      FrameFlightEvent flight = (FrameFlightEvent)event;
+      flight.end();
+      if (flight.shouldCommit())
+      {
+         flight.zoom = zoom;
+         flight.blitting = blitting;
+         flight.snapshot = snapshot;
+         flight.commit();
+      }
+   }
+}
@@ -0,0 +1,27 @@
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/*
+   Flight Recorder event for drawing one frame of the view; by default
+   only frames slow enough to drop below 60 per second are recorded.
+*/
+@Name("virtualworld.Frame")
+@Label("Frame")
+@Category("Virtual World")
+@StackTrace(false)
+@Threshold("16 ms")
+final class FrameFlightEvent
+   extends jdk.jfr.Event
+{
+   @Label("Zoom")
+   int zoom;
+
+   @Label("Blitting")
+   boolean blitting;
+
+   @Label("From Snapshot")
+   boolean snapshot;
+}
@@ -2,17 +2,12 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.Random;
 import java.util.Scanner;
 import processing.core.PImage;
 import processing.core.PApplet;
 
 final class Functions
 {
-   public static final Random rand = new Random();
-
-
-
     private static final int COLOR_MASK = 0xffffff;
     private static final int KEYED_IMAGE_MIN = 5;
     private static final int KEYED_RED_IDX = 2;
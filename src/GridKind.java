@@ -0,0 +1,7 @@
+enum GridKind
+{
+   ARRAY,
+   OFFHEAP,
+   CHUNKED,
+   CONCURRENT
+}
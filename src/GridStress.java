@@ -0,0 +1,265 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+   Hammers a world on a ConcurrentWorldGrid from several threads to show
+   that no entity is ever lost or duplicated.  Each thread owns some
+   walkers it moves at random and some ore it places and removes at random
+   cells, so threads fight over cells but never over an entity.  Every
+   thread checks each of its own operations as it goes.  Every ROUND_OPS
+   operations the threads also stop together, and the whole world is
+   checked while it is quiet: each entity in the set sits in exactly the
+   cell its position names, no cell holds anything else, and the set is
+   as large as what was placed minus what was removed.
+*/
+final class GridStress
+{
+   // small enough that threads keep colliding
+   private static final int SIZE = 24;
+   private static final int WALKERS_PER_THREAD = 16;
+   private static final int ORE_PER_THREAD = 8;
+   private static final int ROUND_OPS = 20000;
+   private static final int[][] STEPS = { {1, 0}, {-1, 0}, {0, 1}, {0, -1} };
+
+   private final int threads;
+   private final long millis;
+   private final WorldModel world;
+   private final AtomicInteger population = new AtomicInteger();
+   private final AtomicLong operations = new AtomicLong();
+   private final AtomicLong refused = new AtomicLong();
+   private final AtomicLong violations = new AtomicLong();
+   private final List<Thread> workers = new ArrayList<>();
+   private volatile String firstViolation;
+   private volatile boolean stopped;
+   private long deadline;
+   private int rounds;
+
+   public GridStress(int threads, long millis)
+   {
+      this.threads = threads;
+      this.millis = millis;
+      this.world = new WorldModel(new ConcurrentWorldGrid(SIZE, SIZE, null));
+   }
+
+   public static void run(WorldConfig config)
+   {
+      GridStress stress = new GridStress(config.stressThreads,
+         config.duration);
+      if (!stress.run())
+      {
+         System.exit(1);
+      }
+   }
+
+   /* false if any check failed or a thread died */
+   public boolean run()
+   {
+      Random random = new Random();
+      List<List<Entity>> walkers = new ArrayList<>();
+      for (int t = 0; t < threads; t++)
+      {
+         List<Entity> own = new ArrayList<>();
+         while (own.size() < WALKERS_PER_THREAD)
+         {
+            Entity walker = createEntity(EntityKind.MINER_NOT_FULL,
+               "walker " + t, randomCell(random));
+            if (world.tryPlaceEntity(walker))
+            {
+               own.add(walker);
+               population.incrementAndGet();
+            }
+         }
+         walkers.add(own);
+      }
+
+      CyclicBarrier barrier = new CyclicBarrier(threads, this::checkQuiet);
+      deadline = System.currentTimeMillis() + millis;
+      for (int t = 0; t < threads; t++)
+      {
+         int index = t;
+         Thread worker = new Thread(() -> work(index, walkers.get(index),
+            barrier), "stress " + t);
+         workers.add(worker);
+      }
+      // all created first, as a dying worker interrupts the rest
+      for (Thread worker : workers)
+      {
+         worker.start();
+      }
+      for (Thread worker : workers)
+      {
+         try
+         {
+            worker.join();
+         }
+         catch (InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+            return false;
+         }
+      }
+
+      System.out.println(String.format(
+         "%d threads, %d rounds, %d operations, %d refused cells: "
+         + "%d violations%s", threads, rounds, operations.get(),
+         refused.get(), violations.get(),
+         firstViolation == null ? "" : " (first: " + firstViolation + ")"));
+      return violations.get() == 0;
+   }
+
+   private void work(int index, List<Entity> walkers, CyclicBarrier barrier)
+   {
+      Random random = new Random(index);
+      List<Entity> ore = new ArrayList<>();
+      try
+      {
+         while (!stopped)
+         {
+            for (int i = 0; i < ROUND_OPS; i++)
+            {
+               int choice = random.nextInt(8);
+               if (choice < 6)
+               {
+                  step(walkers.get(random.nextInt(walkers.size())), random);
+               }
+               else if (choice == 6 && ore.size() < ORE_PER_THREAD)
+               {
+                  Entity placed = createEntity(EntityKind.ORE,
+                     "ore " + index, randomCell(random));
+                  place(placed, ore);
+               }
+               else if (!ore.isEmpty())
+               {
+                  remove(ore.remove(random.nextInt(ore.size())));
+               }
+            }
+            operations.addAndGet(ROUND_OPS);
+            barrier.await();
+         }
+      }
+      catch (InterruptedException | BrokenBarrierException e)
+      {
+         Thread.currentThread().interrupt();
+      }
+      catch (RuntimeException e)
+      {
+         check(false, String.format("%s died: %s",
+            Thread.currentThread().getName(), e));
+         // free the threads waiting for this one; the interrupt makes any
+         // that reach the barrier later break it rather than wait there
+         barrier.reset();
+         for (Thread worker : workers)
+         {
+            if (worker != Thread.currentThread())
+            {
+               worker.interrupt();
+            }
+         }
+      }
+   }
+
+   private void step(Entity walker, Random random)
+   {
+      Point from = walker.position;
+      int[] step = STEPS[random.nextInt(STEPS.length)];
+      Point to = new Point(from.x + step[0], from.y + step[1]);
+
+      if (world.tryMoveEntity(walker, to))
+      {
+         check(walker.position.equals(to), "moved walker not at destination");
+         check(occupantIs(to, walker), "destination lost its walker");
+         check(!occupantIs(from, walker), "walker left behind at source");
+      }
+      else
+      {
+         refused.incrementAndGet();
+         check(walker.position.equals(from), "refused move changed position");
+         check(occupantIs(from, walker), "refused move lost its walker");
+      }
+   }
+
+   private void place(Entity entity, List<Entity> ore)
+   {
+      if (world.tryPlaceEntity(entity))
+      {
+         population.incrementAndGet();
+         ore.add(entity);
+         check(occupantIs(entity.position, entity), "placed ore not in cell");
+      }
+      else
+      {
+         refused.incrementAndGet();
+         check(!occupantIs(entity.position, entity), "refused ore in cell");
+      }
+   }
+
+   private void remove(Entity entity)
+   {
+      Point pos = entity.position;
+      check(world.tryRemoveEntity(entity), "own ore could not be removed");
+      population.decrementAndGet();
+      check(!occupantIs(pos, entity), "removed ore still in cell");
+   }
+
+   /*
+      Runs with every thread stopped at the barrier.
+   */
+   private void checkQuiet()
+   {
+      rounds++;
+      int occupied = 0;
+      for (int y = 0; y < SIZE; y++)
+      {
+         for (int x = 0; x < SIZE; x++)
+         {
+            Point cell = new Point(x, y);
+            Entity occupant = world.getOccupant(cell).orElse(null);
+            if (occupant != null)
+            {
+               occupied++;
+               check(world.entities.contains(occupant),
+                  "cell holds an entity outside the world");
+               check(occupant.position.equals(cell),
+                  "entity found away from its position (duplicated)");
+            }
+         }
+      }
+      check(occupied == world.entities.size(),
+         "occupied cells and entity set disagree");
+      check(occupied == population.get(), "entities lost or duplicated");
+
+      stopped = System.currentTimeMillis() >= deadline;
+   }
+
+   private boolean occupantIs(Point pos, Entity entity)
+   {
+      return world.getOccupant(pos).orElse(null) == entity;
+   }
+
+   private void check(boolean condition, String message)
+   {
+      if (!condition)
+      {
+         if (violations.getAndIncrement() == 0)
+         {
+            firstViolation = message;
+         }
+      }
+   }
+
+   private static Point randomCell(Random random)
+   {
+      return new Point(random.nextInt(SIZE), random.nextInt(SIZE));
+   }
+
+   private static Entity createEntity(EntityKind kind, String id, Point pos)
+   {
+      return new Entity(kind, id, pos, Collections.emptyList(), 0, 0, 0, 0);
+   }
+}
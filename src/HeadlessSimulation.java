@@ -0,0 +1,397 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+
+/*
+   Runs a world without a window.  Time is virtual: the scheduler is
+   advanced one tick period at a time as fast as the machine allows, so
+   config.duration milliseconds of simulation take far less wall time.
+*/
+final class HeadlessSimulation
+{
+   // the region a window would show: kept resident in chunked worlds and
+   // simulated in full detail when the level of detail is reduced
+   private static final int VIEW_COLS = 20;
+   private static final int VIEW_ROWS = 15;
+
+   private final WorldConfig config;
+   private final ImageStore imageStore;
+   private final WorldModel world;
+   private final EventScheduler scheduler;
+   private final SimulationClock clock;
+   private long time;
+
+   public HeadlessSimulation(WorldConfig config)
+   {
+      this(config, createImageStore(config), null);
+   }
+
+   /*
+      Simulates the given, already populated world, or the one config
+      describes when world is null.
+   */
+   public HeadlessSimulation(WorldConfig config, ImageStore imageStore,
+      WorldModel world)
+   {
+      this.config = config;
+      this.imageStore = imageStore;
+      this.scheduler = VirtualWorld.createScheduler(config, 0);
+      this.clock = new SimulationClock(1 / config.timeScale, 0);
+      if (world == null)
+      {
+         world = VirtualWorld.createWorld(config, imageStore);
+         VirtualWorld.loadWorld(world, config, imageStore);
+      }
+      this.world = world;
+      VirtualWorld.scheduleActions(world, scheduler, imageStore);
+      world.touchRegion(0, 0, VIEW_COLS, VIEW_ROWS);
+      scheduler.setFocus(0, 0, VIEW_COLS, VIEW_ROWS);
+   }
+
+   static ImageStore createImageStore(WorldConfig config)
+   {
+      return new ImageStore(VirtualWorld.createImageColored(
+         config.tileWidth, config.tileHeight, 0));
+   }
+
+   private HeadlessSimulation(HeadlessSimulation original,
+      Map<Entity, Entity> copies)
+   {
+      this.config = original.config;
+      this.imageStore = original.imageStore;
+      this.world = original.world.fork(copies);
+      this.scheduler = original.scheduler.fork(world, copies);
+      this.clock = new SimulationClock(1 / config.timeScale, 0);
+      this.time = original.time;
+   }
+
+   /*
+      A copy of this simulation, at the same time, that evolves on its own.
+   */
+   public HeadlessSimulation fork()
+   {
+      return new HeadlessSimulation(this, new IdentityHashMap<>());
+   }
+
+   public static void run(WorldConfig config)
+   {
+      if (config.verify)
+      {
+         verify(config);
+         return;
+      }
+      if (config.forks > 0)
+      {
+         branch(config);
+         return;
+      }
+      if (config.spectators > 0)
+      {
+         spectate(config);
+         return;
+      }
+
+      HeadlessSimulation simulation = new HeadlessSimulation(config);
+      if (config.soakDays > 0)
+      {
+         new SoakMonitor(simulation, config.soakReport).run(
+            config.soakDays * SoakMonitor.MILLIS_PER_DAY);
+         return;
+      }
+
+      long start = System.currentTimeMillis();
+      simulation.advance(config.duration);
+      long elapsed = System.currentTimeMillis() - start;
+
+      System.out.println(String.format(
+         "simulated %d ms in %d ms: %s, %d events queued",
+         simulation.time, elapsed, simulation.census(),
+         simulation.scheduler.getQueueDepth()));
+      SpeculativeExecutor speculator = simulation.scheduler.getSpeculator();
+      if (speculator != null)
+      {
+         System.out.println(String.format(
+            "speculation: %d of %d planned activities committed",
+            speculator.getCommittedCount(), speculator.getPlannedCount()));
+      }
+      ChunkedWorldGrid chunks = simulation.world.getChunkedGrid();
+      if (chunks != null)
+      {
+         System.out.println(String.format(
+            "chunks: %d resident of %d, %d loads, %d evictions",
+            chunks.getResidentChunks(), config.chunkBudget, chunks.getLoads(),
+            chunks.getEvictions()));
+      }
+      if (config.metrics)
+      {
+         System.out.print(VirtualWorld.metrics().dump());
+      }
+   }
+
+   /*
+      Runs the same seeded world serially and speculatively in lockstep,
+      comparing them after every tick.
+   */
+   private static void verify(WorldConfig config)
+   {
+      WorldConfig serialConfig = config.copy();
+      serialConfig.speculate = false;
+      if (serialConfig.seed == 0)
+      {
+         serialConfig.seed = System.nanoTime() | 1;
+      }
+      WorldConfig speculativeConfig = serialConfig.copy();
+      speculativeConfig.speculate = true;
+
+      HeadlessSimulation serial = new HeadlessSimulation(serialConfig);
+      HeadlessSimulation speculative =
+         new HeadlessSimulation(speculativeConfig);
+      while (serial.time < config.duration)
+      {
+         serial.advance(config.tickPeriod);
+         speculative.advance(config.tickPeriod);
+         if (serial.fingerprint() != speculative.fingerprint())
+         {
+            System.out.println(String.format(
+               "seed %d: runs diverged by %d ms", serialConfig.seed,
+               serial.time));
+            return;
+         }
+      }
+
+      SpeculativeExecutor speculator = speculative.scheduler.getSpeculator();
+      System.out.println(String.format(
+         "seed %d: identical for %d ms, %d of %d planned activities committed",
+         serialConfig.seed, serial.time, speculator.getCommittedCount(),
+         speculator.getPlannedCount()));
+   }
+
+   /*
+      Advances virtual time by the given number of milliseconds.
+   */
+   public void advance(long millis)
+   {
+      long end = time + millis;
+      while (time < end)
+      {
+         time = Math.min(end, time + config.tickPeriod);
+         world.pageChunks(scheduler);
+         scheduler.updateOnTime(clock.now(time));
+      }
+   }
+
+   /*
+      Runs to config.forkAt, forks config.forks copies and takes one
+      blacksmith away from every fork but the first, then runs them all on
+      for config.duration.  The untouched fork must end up exactly where
+      the original does.
+   */
+   private static void branch(WorldConfig config)
+   {
+      WorldConfig seeded = config.copy();
+      if (seeded.seed == 0)
+      {
+         seeded.seed = System.nanoTime() | 1;
+      }
+      HeadlessSimulation original = new HeadlessSimulation(seeded);
+      original.advance(config.forkAt);
+
+      long before = usedHeap();
+      long start = System.currentTimeMillis();
+      List<HeadlessSimulation> forks = new ArrayList<>();
+      for (int i = 0; i < config.forks; i++)
+      {
+         forks.add(original.fork());
+      }
+      long forkMillis = System.currentTimeMillis() - start;
+      long perFork = (usedHeap() - before) / config.forks;
+
+      for (int i = 1; i < forks.size(); i++)
+      {
+         forks.get(i).removeBlacksmith(i - 1);
+      }
+
+      original.advance(config.duration);
+      for (HeadlessSimulation fork : forks)
+      {
+         fork.advance(config.duration);
+      }
+
+      System.out.println(String.format(
+         "seed %d: %d forks at %d ms in %d ms, about %d KB each; "
+         + "untouched fork %s the original",
+         seeded.seed, config.forks, config.forkAt, forkMillis,
+         perFork / 1024, forks.get(0).fingerprint() == original.fingerprint()
+            ? "matches" : "DIVERGED FROM"));
+      System.out.println("original\t" + original.census());
+      for (int i = 0; i < forks.size(); i++)
+      {
+         System.out.println("fork " + i + "\t" + forks.get(i).census());
+      }
+   }
+
+   /*
+      Runs with config.spectators viewers attached over loopback, each
+      watching a random window-sized view that jumps elsewhere halfway
+      through, then checks every viewer's mirror against the world.
+   */
+   private static void spectate(WorldConfig config)
+   {
+      HeadlessSimulation simulation = new HeadlessSimulation(config);
+      Random random = new Random(config.seed);
+      InetAddress loopback = InetAddress.getLoopbackAddress();
+      List<SpectatorClient> clients = new ArrayList<>();
+      try
+      {
+         SpectatorServer server = SpectatorServer.attach(simulation.world,
+            simulation.scheduler, loopback, 0);
+         for (int i = 0; i < config.spectators; i++)
+         {
+            SpectatorClient client = new SpectatorClient(loopback,
+               server.getPort());
+            simulation.randomView(client, random);
+            clients.add(client);
+         }
+
+         long start = System.currentTimeMillis();
+         simulation.advance(config.duration / 2);
+         for (SpectatorClient client : clients)
+         {
+            simulation.randomView(client, random);
+         }
+         simulation.advance(config.duration - config.duration / 2);
+
+         int cells = 0;
+         int mismatched = 0;
+         long received = 0;
+         for (SpectatorClient client : clients)
+         {
+            if (!client.await(simulation.time, 10000))
+            {
+               mismatched++;
+               continue;
+            }
+            received += client.getReceived();
+            int[] view = client.getView();
+            for (int y = view[1]; y < view[1] + view[3]; y++)
+            {
+               for (int x = view[0]; x < view[0] + view[2]; x++)
+               {
+                  cells++;
+                  mismatched += simulation.matches(client, new Point(x, y))
+                     ? 0 : 1;
+               }
+            }
+            client.close();
+         }
+         server.close();
+
+         System.out.println(String.format(
+            "%d spectators for %d ms in %d ms: %d cells watched, "
+            + "%d mismatched, %d KB sent (%d KB uncompressed)",
+            config.spectators, simulation.time,
+            System.currentTimeMillis() - start, cells, mismatched,
+            received / 1024, server.getRawBytes() / 1024));
+      }
+      catch (IOException e)
+      {
+         System.err.println(e.getMessage());
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   private void randomView(SpectatorClient client, Random random)
+      throws IOException
+   {
+      client.view(random.nextInt(Math.max(1, world.numCols - VIEW_COLS)),
+         random.nextInt(Math.max(1, world.numRows - VIEW_ROWS)),
+         VIEW_COLS, VIEW_ROWS);
+   }
+
+   private boolean matches(SpectatorClient client, Point pos)
+   {
+      Optional<Entity> occupant = world.getOccupant(pos);
+      if (!occupant.isPresent())
+      {
+         return client.getKey(pos) == null;
+      }
+      return Entity.imageKey(occupant.get().kind).equals(client.getKey(pos))
+         && occupant.get().imageIndex == client.getFrame(pos);
+   }
+
+   private void removeBlacksmith(int which)
+   {
+      List<Entity> smiths = new ArrayList<>();
+      for (Entity entity : world.entities)
+      {
+         if (entity.kind == EntityKind.BLACKSMITH)
+         {
+            smiths.add(entity);
+         }
+      }
+      if (!smiths.isEmpty())
+      {
+         Entity smith = smiths.get(which % smiths.size());
+         world.removeEntity(smith);
+         scheduler.unscheduleAllEvents(smith);
+      }
+   }
+
+   private static long usedHeap()
+   {
+      System.gc();
+      Runtime runtime = Runtime.getRuntime();
+      return runtime.totalMemory() - runtime.freeMemory();
+   }
+
+   public long getTime()
+   {
+      return time;
+   }
+
+   public WorldModel getWorld()
+   {
+      return world;
+   }
+
+   public EventScheduler getScheduler()
+   {
+      return scheduler;
+   }
+
+   /*
+      Hash of every entity's kind, id, position and frame, in world order,
+      and of the queue depth.
+   */
+   public long fingerprint()
+   {
+      long hash = scheduler.getQueueDepth();
+      for (Entity entity : world.entities)
+      {
+         hash = hash * 31 + entity.kind.ordinal();
+         hash = hash * 31 + entity.getId().hashCode();
+         hash = hash * 31 + entity.position.hashCode();
+         hash = hash * 31 + entity.imageIndex;
+      }
+      return hash;
+   }
+
+   public Map<EntityKind, Integer> census()
+   {
+      Map<EntityKind, Integer> counts = new EnumMap<>(EntityKind.class);
+      for (Entity entity : world.entities)
+      {
+         counts.merge(entity.kind, 1, Integer::sum);
+      }
+      return counts;
+   }
+}
@@ -13,6 +13,15 @@ final class ImageStore {
       defaultImages.add(defaultImage);
    }
 
+    /*
+       Makes the store read-only once every image is loaded, so that
+       several simulations on different threads can share it.
+    */
+    public void freeze()
+    {
+        images = Collections.unmodifiableMap(images);
+    }
+
     public  List<PImage> getImageList(String key)
     {
         return images.getOrDefault(key, defaultImages);
@@ -20,6 +29,9 @@ final class ImageStore {
 
     public  void loadImages(Scanner in, PApplet screen)
     {
+        Object flight = FlightEvents.beginLoad();
+        int invalid = 0;
+
         int lineNumber = 0;
         while (in.hasNextLine())
         {
@@ -31,9 +43,17 @@ final class ImageStore {
             {
                 System.out.println(String.format("Image format error on line %d",
                         lineNumber));
+                invalid++;
             }
             lineNumber++;
         }
+
+        int loaded = 0;
+        for (List<PImage> list : images.values())
+        {
+            loaded += list.size();
+        }
+        FlightEvents.endLoad(flight, "images", lineNumber, invalid, loaded);
     }
 
 }
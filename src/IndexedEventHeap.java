@@ -0,0 +1,175 @@
+import java.util.Arrays;
+import java.util.List;
+
+/*
+   Indexed 4-ary min-heap of events.  Due times live in a parallel long[]
+   so sifting compares primitives without touching the events, and each
+   event records its own slot, which makes removing an arbitrary event
+   O(log n) with no searching.
+*/
+final class IndexedEventHeap
+   implements EventQueue
+{
+   private static final int ARITY = 4;
+   private static final int INITIAL_CAPACITY = 64;
+
+   private long[] times = new long[INITIAL_CAPACITY];
+   private Event[] events = new Event[INITIAL_CAPACITY];
+   private int size;
+   private long nextSequence;
+
+   public void add(Event event)
+   {
+      if (size == events.length)
+      {
+         times = Arrays.copyOf(times, size * 2);
+         events = Arrays.copyOf(events, size * 2);
+      }
+      event.sequence = nextSequence++;
+      siftUp(size++, event);
+   }
+
+   public Event peek()
+   {
+      return size == 0 ? null : events[0];
+   }
+
+   public Event poll()
+   {
+      if (size == 0)
+      {
+         return null;
+      }
+      Event first = events[0];
+      removeAt(0);
+      return first;
+   }
+
+   public void remove(Event event)
+   {
+      int index = event.heapIndex;
+      if (index >= 0 && index < size && events[index] == event)
+      {
+         removeAt(index);
+      }
+   }
+
+   public void collectDue(long time, List<Event> due)
+   {
+      collectDue(0, time, due);
+   }
+
+   /* a slot that is not due has no due descendants */
+   private void collectDue(int index, long time, List<Event> due)
+   {
+      if (index < size && times[index] < time)
+      {
+         due.add(events[index]);
+         int child = index * ARITY + 1;
+         for (int i = child; i < child + ARITY; i++)
+         {
+            collectDue(i, time, due);
+         }
+      }
+   }
+
+   public int size()
+   {
+      return size;
+   }
+
+   public boolean isEmpty()
+   {
+      return size == 0;
+   }
+
+   private void removeAt(int index)
+   {
+      Event removed = events[index];
+      removed.heapIndex = -1;
+
+      int last = --size;
+      Event moved = events[last];
+      events[last] = null;
+
+      if (index != last)
+      {
+         if (index > 0 && before(moved.time, moved.sequence,
+            (index - 1) / ARITY))
+         {
+            siftUp(index, moved);
+         }
+         else
+         {
+            siftDown(index, moved);
+         }
+      }
+   }
+
+   private void siftUp(int index, Event event)
+   {
+      long time = event.time;
+      while (index > 0)
+      {
+         int parent = (index - 1) / ARITY;
+         if (!before(time, event.sequence, parent))
+         {
+            break;
+         }
+         place(index, events[parent]);
+         index = parent;
+      }
+      place(index, event);
+   }
+
+   private void siftDown(int index, Event event)
+   {
+      long time = event.time;
+      while (true)
+      {
+         int child = index * ARITY + 1;
+         if (child >= size)
+         {
+            break;
+         }
+
+         int best = child;
+         int end = Math.min(child + ARITY, size);
+         for (int i = child + 1; i < end; i++)
+         {
+            if (before(times[i], events[i].sequence, best))
+            {
+               best = i;
+            }
+         }
+
+         if (!ordered(times[best], events[best].sequence, time,
+            event.sequence))
+         {
+            break;
+         }
+         place(index, events[best]);
+         index = best;
+      }
+      place(index, event);
+   }
+
+   /* true if (time, sequence) orders strictly before the event in slot */
+   private boolean before(long time, long sequence, int slot)
+   {
+      return ordered(time, sequence, times[slot], events[slot].sequence);
+   }
+
+   private static boolean ordered(long time, long sequence, long otherTime,
+      long otherSequence)
+   {
+      return time < otherTime || (time == otherTime && sequence < otherSequence);
+   }
+
+   private void place(int index, Event event)
+   {
+      events[index] = event;
+      times[index] = event.time;
+      event.heapIndex = index;
+   }
+}
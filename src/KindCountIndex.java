@@ -0,0 +1,248 @@
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+   Counts of each kind of entity over any rectangle of cells, in
+   O(log rows * log cols), from one two-dimensional Fenwick tree per
+   kind.  A kind's tree is built the first time that kind is asked about
+   and is kept current from then on as a WorldObserver, so kinds nobody
+   asks about cost nothing; each tree takes four bytes per cell.
+
+   The counts also drive a nearest-entity search that descends into
+   quadrants, nearest first, and skips every quadrant that holds none of
+   the kind or lies further away than the best candidate so far.
+   Searches may run on several threads at once while the world is quiet,
+   so a tree is only published once it is complete.
+*/
+final class KindCountIndex
+   implements WorldObserver
+{
+   // regions this small are scanned cell by cell rather than split
+   private static final int LEAF_CELLS = 16;
+
+   private final WorldModel world;
+   private final int numRows;
+   private final int numCols;
+   private final AtomicReferenceArray<int[]> trees =
+      new AtomicReferenceArray<>(EntityKind.values().length);
+   private final int[] totals = new int[EntityKind.values().length];
+
+   public KindCountIndex(WorldModel world)
+   {
+      this.world = world;
+      this.numRows = world.numRows;
+      this.numCols = world.numCols;
+      for (Entity entity : world.entities)
+      {
+         totals[entity.kind.ordinal()]++;
+      }
+   }
+
+   /* entities of kind in the rectangle, clipped to the world */
+   public int count(EntityKind kind, int col, int row, int cols, int rows)
+   {
+      int endCol = Math.min(col + cols, numCols);
+      int endRow = Math.min(row + rows, numRows);
+      col = Math.max(col, 0);
+      row = Math.max(row, 0);
+      if (col >= endCol || row >= endRow)
+      {
+         return 0;
+      }
+
+      int[] tree = tree(kind);
+      return prefix(tree, endCol, endRow) - prefix(tree, col, endRow)
+         - prefix(tree, endCol, row) + prefix(tree, col, row);
+   }
+
+   /*
+      Searches for the entity of kind nearest pos, ties going to the one
+      earliest in world order, exactly as a scan over world.entities would
+      find it.
+   */
+   public Search nearest(EntityKind kind, Point pos)
+   {
+      Search search = new Search(kind, pos);
+      if (totals[kind.ordinal()] != 0)
+      {
+         search.visit(0, 0, numCols, numRows);
+      }
+      return search;
+   }
+
+   final class Search
+   {
+      private final EntityKind kind;
+      private final Point pos;
+      private Entity best;
+      private long bestDistance = Long.MAX_VALUE;
+      private int scanned;
+
+      Search(EntityKind kind, Point pos)
+      {
+         this.kind = kind;
+         this.pos = pos;
+      }
+
+      public Optional<Entity> getNearest()
+      {
+         return Optional.ofNullable(best);
+      }
+
+      /* cells read cell by cell */
+      public int getScanned()
+      {
+         return scanned;
+      }
+
+      void visit(int col, int row, int cols, int rows)
+      {
+         if (distanceTo(col, row, cols, rows) > bestDistance
+            || count(kind, col, row, cols, rows) == 0)
+         {
+            return;
+         }
+
+         if (cols * rows <= LEAF_CELLS)
+         {
+            scan(col, row, cols, rows);
+            return;
+         }
+
+         // split the longer side, and look at the nearer half first
+         if (cols >= rows)
+         {
+            int half = cols / 2;
+            boolean lowFirst = pos.x < col + half;
+            visit(lowFirst ? col : col + half, row,
+               lowFirst ? half : cols - half, rows);
+            visit(lowFirst ? col + half : col, row,
+               lowFirst ? cols - half : half, rows);
+         }
+         else
+         {
+            int half = rows / 2;
+            boolean lowFirst = pos.y < row + half;
+            visit(col, lowFirst ? row : row + half, cols,
+               lowFirst ? half : rows - half);
+            visit(col, lowFirst ? row + half : row, cols,
+               lowFirst ? rows - half : half);
+         }
+      }
+
+      private void scan(int col, int row, int cols, int rows)
+      {
+         scanned += cols * rows;
+         for (int y = row; y < row + rows; y++)
+         {
+            for (int x = col; x < col + cols; x++)
+            {
+               Optional<Entity> occupant = world.getOccupant(new Point(x, y));
+               if (occupant.isPresent() && occupant.get().kind == kind)
+               {
+                  consider(occupant.get());
+               }
+            }
+         }
+      }
+
+      private void consider(Entity entity)
+      {
+         long dx = entity.position.x - pos.x;
+         long dy = entity.position.y - pos.y;
+         long distance = dx * dx + dy * dy;
+         if (distance < bestDistance || (distance == bestDistance
+            && entity.worldOrder < best.worldOrder))
+         {
+            best = entity;
+            bestDistance = distance;
+         }
+      }
+
+      private long distanceTo(int col, int row, int cols, int rows)
+      {
+         long dx = Math.max(0,
+            Math.max(col - pos.x, pos.x - (col + cols - 1)));
+         long dy = Math.max(0,
+            Math.max(row - pos.y, pos.y - (row + rows - 1)));
+         return dx * dx + dy * dy;
+      }
+   }
+
+   private int[] tree(EntityKind kind)
+   {
+      int[] tree = trees.get(kind.ordinal());
+      return tree != null ? tree : build(kind);
+   }
+
+   /* one thread builds a kind's tree; the rest wait for it */
+   private synchronized int[] build(EntityKind kind)
+   {
+      int[] tree = trees.get(kind.ordinal());
+      if (tree == null)
+      {
+         tree = new int[(numRows + 1) * (numCols + 1)];
+         for (Entity entity : world.entities)
+         {
+            if (entity.kind == kind)
+            {
+               add(tree, entity.position, 1);
+            }
+         }
+         trees.set(kind.ordinal(), tree);
+      }
+      return tree;
+   }
+
+   /* entities in columns [0, col) of rows [0, row) */
+   private int prefix(int[] tree, int col, int row)
+   {
+      int sum = 0;
+      for (int y = row; y > 0; y -= y & -y)
+      {
+         for (int x = col; x > 0; x -= x & -x)
+         {
+            sum += tree[y * (numCols + 1) + x];
+         }
+      }
+      return sum;
+   }
+
+   private void add(int[] tree, Point pos, int delta)
+   {
+      for (int y = pos.y + 1; y <= numRows; y += y & -y)
+      {
+         for (int x = pos.x + 1; x <= numCols; x += x & -x)
+         {
+            tree[y * (numCols + 1) + x] += delta;
+         }
+      }
+   }
+
+   private void update(Entity entity, Point pos, int delta)
+   {
+      int[] tree = trees.get(entity.kind.ordinal());
+      if (tree != null)
+      {
+         add(tree, pos, delta);
+      }
+   }
+
+   public void entityAdded(Entity entity)
+   {
+      totals[entity.kind.ordinal()]++;
+      update(entity, entity.position, 1);
+   }
+
+   public void entityMoved(Entity entity, Point from)
+   {
+      update(entity, from, -1);
+      update(entity, entity.position, 1);
+   }
+
+   public void entityRemoved(Entity entity, Point from)
+   {
+      totals[entity.kind.ordinal()]--;
+      update(entity, from, -1);
+   }
+}
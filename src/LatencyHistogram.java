@@ -0,0 +1,104 @@
+import java.util.Arrays;
+
+/*
+   Fixed-footprint histogram in the spirit of HdrHistogram: values are
+   bucketed by power of two and then split linearly into SUB_BUCKETS
+   slots, which keeps the relative error under 1/SUB_BUCKETS without any
+   allocation on the recording path.  Reads from another thread (JMX,
+   the periodic dump) may be slightly stale, which is fine for monitoring.
+*/
+final class LatencyHistogram
+{
+   private static final int SUB_BUCKET_BITS = 5;
+   private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+   private static final int MAGNITUDES = 64 - SUB_BUCKET_BITS;
+
+   private final long[] counts;
+   private long totalCount;
+   private long totalValue;
+   private long maxValue;
+
+   public LatencyHistogram()
+   {
+      this.counts = new long[(MAGNITUDES + 1) * SUB_BUCKETS];
+   }
+
+   public void record(long value)
+   {
+      if (value < 0)
+      {
+         value = 0;
+      }
+      counts[indexOf(value)]++;
+      totalCount++;
+      totalValue += value;
+      if (value > maxValue)
+      {
+         maxValue = value;
+      }
+   }
+
+   public long getCount()
+   {
+      return totalCount;
+   }
+
+   public long getMax()
+   {
+      return maxValue;
+   }
+
+   public double getMean()
+   {
+      return totalCount == 0 ? 0.0 : (double)totalValue / totalCount;
+   }
+
+   /*
+      Returns the upper bound of the bucket holding the requested
+      percentile (0-100).
+   */
+   public long getValueAtPercentile(double percentile)
+   {
+      long target = (long)Math.ceil(totalCount * percentile / 100.0);
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++)
+      {
+         seen += counts[i];
+         if (seen >= target && seen > 0)
+         {
+            return Math.min(upperBoundOf(i), maxValue);
+         }
+      }
+      return 0;
+   }
+
+   public void reset()
+   {
+      Arrays.fill(counts, 0);
+      totalCount = 0;
+      totalValue = 0;
+      maxValue = 0;
+   }
+
+   private static int indexOf(long value)
+   {
+      if (value < SUB_BUCKETS)
+      {
+         return (int)value;
+      }
+      int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+      int sub = (int)(value >>> shift) - SUB_BUCKETS;
+      return (shift + 1) * SUB_BUCKETS + sub;
+   }
+
+   private static long upperBoundOf(int index)
+   {
+      if (index < SUB_BUCKETS)
+      {
+         return index;
+      }
+      int shift = index / SUB_BUCKETS - 1;
+      long lower = ((long)(SUB_BUCKETS + index % SUB_BUCKETS)) << shift;
+      return lower + (1L << shift) - 1;
+   }
+}
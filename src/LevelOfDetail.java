@@ -0,0 +1,101 @@
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/*
+   Decides how faithfully each part of the world is simulated.  Cells
+   inside the focus (what a viewer can see, plus a margin) run at full
+   fidelity.  Everywhere else movers and veins do COARSE_STEPS worth of
+   work per activity at a proportionally longer period, and animations
+   stop until the entity comes back into focus.
+*/
+final class LevelOfDetail
+{
+   public static final int COARSE_STEPS = 4;
+
+   private final int margin;
+   private int col;
+   private int row;
+   private int numCols;
+   private int numRows;
+   private boolean focused;
+   private final Set<Entity> suspended = new LinkedHashSet<>();
+
+   public LevelOfDetail(int margin)
+   {
+      this.margin = margin;
+   }
+
+   /*
+      Moves the focus to the given region; returns true if it changed.
+   */
+   public boolean setFocus(int col, int row, int numCols, int numRows)
+   {
+      if (focused && col == this.col && row == this.row
+         && numCols == this.numCols && numRows == this.numRows)
+      {
+         return false;
+      }
+      this.col = col;
+      this.row = row;
+      this.numCols = numCols;
+      this.numRows = numRows;
+      this.focused = true;
+      return true;
+   }
+
+   /*
+      The same focus, with suspended entities mapped through copies.
+   */
+   public LevelOfDetail copy(Map<Entity, Entity> copies)
+   {
+      LevelOfDetail copy = new LevelOfDetail(margin);
+      copy.col = col;
+      copy.row = row;
+      copy.numCols = numCols;
+      copy.numRows = numRows;
+      copy.focused = focused;
+      for (Entity entity : suspended)
+      {
+         copy.suspended.add(copies.get(entity));
+      }
+      return copy;
+   }
+
+   public boolean isDetailed(Point pos)
+   {
+      return !focused ||
+         (pos.x >= col - margin && pos.x < col + numCols + margin &&
+         pos.y >= row - margin && pos.y < row + numRows + margin);
+   }
+
+   public int stepsAt(Point pos)
+   {
+      return isDetailed(pos) ? 1 : COARSE_STEPS;
+   }
+
+   public void suspend(Entity entity)
+   {
+      suspended.add(entity);
+   }
+
+   public boolean isSuspended(Entity entity)
+   {
+      return suspended.contains(entity);
+   }
+
+   public void forget(Entity entity)
+   {
+      suspended.remove(entity);
+   }
+
+   public int getSuspendedCount()
+   {
+      return suspended.size();
+   }
+
+   public Set<Entity> getSuspended()
+   {
+      return suspended;
+   }
+}
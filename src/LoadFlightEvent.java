@@ -0,0 +1,25 @@
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/*
+   Flight Recorder event for loading a world or its images.
+*/
+@Name("virtualworld.Load")
+@Label("World Load")
+@Category("Virtual World")
+final class LoadFlightEvent
+   extends jdk.jfr.Event
+{
+   @Label("Phase")
+   String phase;
+
+   @Label("Lines")
+   int lines;
+
+   @Label("Invalid Lines")
+   int invalid;
+
+   @Label("Items Loaded")
+   int loaded;
+}
@@ -0,0 +1,17 @@
+import java.util.Optional;
+
+/*
+   The outcome of one nearest-entity search, with how many candidates it
+   read to get there.
+*/
+final class NearestSearch
+{
+   public final Optional<Entity> nearest;
+   public final int scanned;
+
+   public NearestSearch(Optional<Entity> nearest, int scanned)
+   {
+      this.nearest = nearest;
+      this.scanned = scanned;
+   }
+}
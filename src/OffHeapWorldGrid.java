@@ -0,0 +1,203 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+   Off-heap cell storage for very large worlds.  Each cell is two packed
+   ints outside the Java heap: an entity handle (0 = empty) and an index
+   into a small palette of backgrounds, one per background id (0 = the
+   default), so the garbage collector never scans the grid.  The ints live
+   in direct buffers, or in a memory-mapped file so that a world larger
+   than RAM pages in on demand.
+   A single buffer is limited to 2 GB, so the grid is split into segments.
+*/
+final class OffHeapWorldGrid
+   implements WorldGrid
+{
+   private static final int BYTES_PER_CELL = 2 * Integer.BYTES;
+   private static final int SEGMENT_SHIFT = 26;
+   private static final long SEGMENT_CELLS = 1L << SEGMENT_SHIFT;
+   private static final int NO_ENTITY = 0;
+
+   private final int numRows;
+   private final int numCols;
+   private final IntBuffer[] segments;
+
+   private final List<Background> palette = new ArrayList<>();
+   private final Map<String, Integer> paletteIndex = new HashMap<>();
+
+   private Entity[] handles = new Entity[1024];
+   private int[] freeHandles = new int[1024];
+   private int freeCount;
+   private int nextHandle = 1;
+
+   /*
+      Allocates the grid in direct memory when file is null, otherwise in
+      the given file, which is truncated first so every cell starts empty
+      (and, on most file systems, takes no disk space until written).
+   */
+   public OffHeapWorldGrid(int numRows, int numCols,
+      Background defaultBackground, Path file)
+      throws IOException
+   {
+      this.numRows = numRows;
+      this.numCols = numCols;
+      long cells = (long)numRows * numCols;
+      int count = (int)((cells + SEGMENT_CELLS - 1) >>> SEGMENT_SHIFT);
+      this.segments = new IntBuffer[count];
+
+      palette.add(defaultBackground);
+      paletteIndex.put(defaultBackground.getId(), 0);
+
+      FileChannel channel = file == null ? null : FileChannel.open(file,
+         StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+         StandardOpenOption.READ, StandardOpenOption.WRITE);
+      try
+      {
+         for (int i = 0; i < count; i++)
+         {
+            long size = Math.min(SEGMENT_CELLS,
+               cells - ((long)i << SEGMENT_SHIFT)) * BYTES_PER_CELL;
+            ByteBuffer bytes = channel == null
+               ? ByteBuffer.allocateDirect((int)size)
+               : channel.map(FileChannel.MapMode.READ_WRITE,
+                  ((long)i << SEGMENT_SHIFT) * BYTES_PER_CELL, size);
+            segments[i] = bytes.order(ByteOrder.nativeOrder()).asIntBuffer();
+         }
+      }
+      finally
+      {
+         if (channel != null)
+         {
+            // mappings stay valid after the channel is closed
+            channel.close();
+         }
+      }
+   }
+
+   public int getNumRows()
+   {
+      return numRows;
+   }
+
+   public int getNumCols()
+   {
+      return numCols;
+   }
+
+   public Entity getOccupant(Point pos)
+   {
+      return handles[read(pos, 0)];
+   }
+
+   public void setOccupant(Point pos, Entity entity)
+   {
+      int old = read(pos, 0);
+      if (old != NO_ENTITY && handles[old] != entity)
+      {
+         releaseHandle(old);
+      }
+      write(pos, 0, entity == null ? NO_ENTITY : handleOf(entity));
+   }
+
+   /*
+      Keeps the handle of an entity that has just claimed the cell it is
+      moving to, which is where its position already points.
+   */
+   public boolean releaseOccupant(Point pos, Entity entity)
+   {
+      int handle = read(pos, 0);
+      if (handle == NO_ENTITY || handles[handle] != entity)
+      {
+         return false;
+      }
+      write(pos, 0, NO_ENTITY);
+      Point current = entity.position;
+      if (current.x < 0 || current.x >= numCols || current.y < 0
+         || current.y >= numRows || read(current, 0) != handle)
+      {
+         releaseHandle(handle);
+      }
+      return true;
+   }
+
+   public Background getBackground(Point pos)
+   {
+      return palette.get(read(pos, 1));
+   }
+
+   public void setBackground(Point pos, Background background)
+   {
+      Integer index = paletteIndex.get(background.getId());
+      if (index == null)
+      {
+         index = palette.size();
+         palette.add(background);
+         paletteIndex.put(background.getId(), index);
+      }
+      write(pos, 1, index);
+   }
+
+   private int read(Point pos, int plane)
+   {
+      long cell = (long)pos.y * numCols + pos.x;
+      return segments[(int)(cell >>> SEGMENT_SHIFT)]
+         .get((int)(cell & (SEGMENT_CELLS - 1)) * 2 + plane);
+   }
+
+   private void write(Point pos, int plane, int value)
+   {
+      long cell = (long)pos.y * numCols + pos.x;
+      segments[(int)(cell >>> SEGMENT_SHIFT)]
+         .put((int)(cell & (SEGMENT_CELLS - 1)) * 2 + plane, value);
+   }
+
+   /*
+      An entity keeps one handle while it is on the grid; the handle is
+      recycled once the cell holding it is cleared or overwritten.
+   */
+   private int handleOf(Entity entity)
+   {
+      if (entity.gridHandle != NO_ENTITY && handles[entity.gridHandle] == entity)
+      {
+         return entity.gridHandle;
+      }
+
+      int handle;
+      if (freeCount > 0)
+      {
+         handle = freeHandles[--freeCount];
+      }
+      else
+      {
+         if (nextHandle == handles.length)
+         {
+            handles = Arrays.copyOf(handles, handles.length * 2);
+         }
+         handle = nextHandle++;
+      }
+      handles[handle] = entity;
+      entity.gridHandle = handle;
+      return handle;
+   }
+
+   private void releaseHandle(int handle)
+   {
+      handles[handle].gridHandle = NO_ENTITY;
+      handles[handle] = null;
+      if (freeCount == freeHandles.length)
+      {
+         freeHandles = Arrays.copyOf(freeHandles, freeCount * 2);
+      }
+      freeHandles[freeCount++] = handle;
+   }
+}
@@ -0,0 +1,200 @@
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import processing.core.PApplet;
+import processing.core.PConstants;
+import processing.core.PImage;
+
+/*
+   Draws images by writing straight into the screen's pixels instead of
+   going through PApplet.image, for a frame made of many small opaque or
+   colour-keyed images.  Each image is examined once: opaque images are
+   copied a row at a time, keyed ones (alpha only ever 0 or 255, as
+   Functions.setAlpha leaves them) as runs of visible pixels, and only
+   images with partial alpha are blended pixel by pixel.  Frames are
+   bracketed by begin and end, so the screen's pixels are loaded and
+   updated once per frame.
+*/
+final class PixelBlitter
+{
+   private final Map<PImage, Sprite> sprites = new IdentityHashMap<>();
+   private int[] pixels;
+   private int width;
+   private int height;
+
+   /* false when the screen's pixels are not one per drawing unit */
+   public static boolean supports(PApplet screen)
+   {
+      return screen.pixelDensity == 1;
+   }
+
+   public void begin(PApplet screen)
+   {
+      screen.loadPixels();
+      this.pixels = screen.pixels;
+      this.width = screen.width;
+      this.height = screen.height;
+   }
+
+   public void end(PApplet screen)
+   {
+      screen.updatePixels();
+      this.pixels = null;
+   }
+
+   public void draw(PImage image, int x, int y)
+   {
+      Sprite sprite = sprites.get(image);
+      if (sprite == null)
+      {
+         sprite = new Sprite(image);
+         sprites.put(image, sprite);
+      }
+
+      // clip to the screen
+      int firstRow = Math.max(0, -y);
+      int endRow = Math.min(image.height, height - y);
+      int firstCol = Math.max(0, -x);
+      int endCol = Math.min(image.width, width - x);
+      if (firstRow >= endRow || firstCol >= endCol)
+      {
+         return;
+      }
+
+      if (sprite.runs == null)
+      {
+         for (int row = firstRow; row < endRow; row++)
+         {
+            System.arraycopy(sprite.pixels, row * image.width + firstCol,
+               pixels, (y + row) * width + x + firstCol, endCol - firstCol);
+         }
+      }
+      else
+      {
+         int[] runs = sprite.runs;
+         for (int i = 0; i < runs.length; i += 3)
+         {
+            int row = runs[i];
+            int start = Math.max(runs[i + 1], firstCol);
+            int end = Math.min(runs[i + 1] + runs[i + 2], endCol);
+            if (row >= firstRow && row < endRow && start < end)
+            {
+               System.arraycopy(sprite.pixels, row * image.width + start,
+                  pixels, (y + row) * width + x + start, end - start);
+            }
+         }
+      }
+
+      if (sprite.blended != null)
+      {
+         blend(sprite, x, y, firstRow, endRow, firstCol, endCol);
+      }
+   }
+
+   private void blend(Sprite sprite, int x, int y, int firstRow, int endRow,
+      int firstCol, int endCol)
+   {
+      int imageWidth = sprite.width;
+      for (int index : sprite.blended)
+      {
+         int row = index / imageWidth;
+         int col = index % imageWidth;
+         if (row < firstRow || row >= endRow
+            || col < firstCol || col >= endCol)
+         {
+            continue;
+         }
+         int src = sprite.pixels[index];
+         int dst = (y + row) * width + x + col;
+         int alpha = src >>> 24;
+         int color = 0xff000000;
+         for (int shift = 0; shift <= 16; shift += 8)
+         {
+            int s = (src >> shift) & 0xff;
+            int d = (pixels[dst] >> shift) & 0xff;
+            color |= (d + (s - d) * alpha / 255) << shift;
+         }
+         pixels[dst] = color;
+      }
+   }
+
+   /*
+      An image's pixels, and for images that are not opaque throughout,
+      its runs of fully opaque pixels as (row, col, length) and the
+      indices of its partly transparent ones.
+   */
+   private static final class Sprite
+   {
+      final int[] pixels;
+      final int width;
+      int[] runs;
+      int[] blended;
+
+      Sprite(PImage image)
+      {
+         image.loadPixels();
+         this.width = image.width;
+         if (image.format == PConstants.RGB)
+         {
+            // whatever the alpha bits say, an RGB image is opaque
+            this.pixels = new int[image.pixels.length];
+            for (int i = 0; i < pixels.length; i++)
+            {
+               pixels[i] = image.pixels[i] | 0xff000000;
+            }
+            return;
+         }
+         this.pixels = image.pixels;
+
+         int[] runs = new int[3 * 16];
+         int runCount = 0;
+         int[] blended = new int[16];
+         int blendedCount = 0;
+         boolean opaque = true;
+         for (int row = 0; row < image.height; row++)
+         {
+            int col = 0;
+            while (col < image.width)
+            {
+               int alpha = pixels[row * width + col] >>> 24;
+               if (alpha != 0xff)
+               {
+                  opaque = false;
+                  if (alpha != 0)
+                  {
+                     if (blendedCount == blended.length)
+                     {
+                        blended = Arrays.copyOf(blended, blendedCount * 2);
+                     }
+                     blended[blendedCount++] = row * width + col;
+                  }
+                  col++;
+                  continue;
+               }
+
+               int start = col;
+               while (col < image.width
+                  && pixels[row * width + col] >>> 24 == 0xff)
+               {
+                  col++;
+               }
+               if (runCount * 3 == runs.length)
+               {
+                  runs = Arrays.copyOf(runs, runs.length * 2);
+               }
+               runs[runCount * 3] = row;
+               runs[runCount * 3 + 1] = start;
+               runs[runCount * 3 + 2] = col - start;
+               runCount++;
+            }
+         }
+
+         if (!opaque)
+         {
+            this.runs = Arrays.copyOf(runs, runCount * 3);
+            this.blended = blendedCount == 0 ? null
+               : Arrays.copyOf(blended, blendedCount);
+         }
+      }
+   }
+}
@@ -0,0 +1,56 @@
+import java.util.List;
+import java.util.PriorityQueue;
+
+/*
+   EventQueue over java.util.PriorityQueue.  Removal is a linear search,
+   which is what the scheduler originally used.
+*/
+final class PriorityEventQueue
+   implements EventQueue
+{
+   private final PriorityQueue<Event> queue =
+      new PriorityQueue<>(new EventComparator());
+   private long nextSequence;
+
+   public void add(Event event)
+   {
+      event.sequence = nextSequence++;
+      queue.add(event);
+   }
+
+   public Event peek()
+   {
+      return queue.peek();
+   }
+
+   public Event poll()
+   {
+      return queue.poll();
+   }
+
+   public void remove(Event event)
+   {
+      queue.remove(event);
+   }
+
+   public void collectDue(long time, List<Event> due)
+   {
+      for (Event event : queue)
+      {
+         if (event.time < time)
+         {
+            due.add(event);
+         }
+      }
+   }
+
+   public int size()
+   {
+      return queue.size();
+   }
+
+   public boolean isEmpty()
+   {
+      return queue.isEmpty();
+   }
+}
@@ -0,0 +1,64 @@
+import java.util.Arrays;
+import processing.core.PImage;
+
+/*
+   Entity positions and current frames for one region of the world,
+   captured by the simulation thread for the render thread.  Instances are
+   recycled by SnapshotBuffer, so they are only immutable while the render
+   side holds them.
+*/
+final class RenderSnapshot
+{
+   private static final int INITIAL_CAPACITY = 64;
+
+   public volatile long sequence;
+   public int col;
+   public int row;
+   public int numCols;
+   public int numRows;
+   public int count;
+   public int[] xs = new int[INITIAL_CAPACITY];
+   public int[] ys = new int[INITIAL_CAPACITY];
+   public PImage[] images = new PImage[INITIAL_CAPACITY];
+
+   public void capture(WorldModel world, int col, int row, int numCols,
+      int numRows, long sequence)
+   {
+      this.col = col;
+      this.row = row;
+      this.numCols = numCols;
+      this.numRows = numRows;
+      this.count = 0;
+
+      for (Entity entity : world.entities)
+      {
+         Point pos = entity.position;
+         if (pos.x >= col && pos.x < col + numCols &&
+            pos.y >= row && pos.y < row + numRows)
+         {
+            add(pos.x, pos.y, Functions.getCurrentImage(entity));
+         }
+      }
+
+      for (int i = count; i < images.length && images[i] != null; i++)
+      {
+         images[i] = null;
+      }
+      this.sequence = sequence;
+   }
+
+   private void add(int x, int y, PImage image)
+   {
+      if (count == xs.length)
+      {
+         int capacity = count * 2;
+         xs = Arrays.copyOf(xs, capacity);
+         ys = Arrays.copyOf(ys, capacity);
+         images = Arrays.copyOf(images, capacity);
+      }
+      xs[count] = x;
+      ys[count] = y;
+      images[count] = image;
+      count++;
+   }
+}
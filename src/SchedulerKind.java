@@ -0,0 +1,5 @@
+enum SchedulerKind
+{
+   HEAP,
+   QUEUE
+}
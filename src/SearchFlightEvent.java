@@ -0,0 +1,31 @@
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/*
+   Flight Recorder event for one nearest-entity search, with how many
+   candidates it looked at: every entity in the world for a scan, or the
+   cells read for a search pruned by a KindCountIndex.
+*/
+@Name("virtualworld.FindNearest")
+@Label("Find Nearest")
+@Category("Virtual World")
+@StackTrace(false)
+@Threshold("1 ms")
+final class SearchFlightEvent
+   extends jdk.jfr.Event
+{
+   @Label("Kind")
+   String kind;
+
+   @Label("Candidates Scanned")
+   int scanned;
+
+   @Label("Indexed")
+   boolean indexed;
+
+   @Label("Found")
+   boolean found;
+}
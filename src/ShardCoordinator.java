@@ -0,0 +1,263 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+
+/*
+   Runs a world split across config.shards local processes, one WorldShard
+   each, by column stripes.  The coordinator spawns the shards, then
+   drives them through windows of one tick: every shard runs to the end
+   of the window, sends what it has for its neighbours, and only once all
+   are done are those messages delivered and the next window started.
+   Synchronization is conservative: no shard ever runs ahead of another,
+   and an interaction across a border takes effect at the next window.
+*/
+final class ShardCoordinator
+{
+   // how often to check on shards that have not connected yet
+   private static final int ACCEPT_POLL_MILLIS = 500;
+
+   private final WorldConfig config;
+   private final List<Process> processes = new ArrayList<>();
+   private final DataInputStream[] ins;
+   private final DataOutputStream[] outs;
+   private final ByteArrayOutputStream[] outboxes;
+   private final int[] census = new int[EntityKind.values().length];
+   // the shards' totals so far, as of the latest window
+   private int collisions;
+   private int staleRemoves;
+   private long relayed;
+   private long relayedBytes;
+
+   private ShardCoordinator(WorldConfig config)
+   {
+      this.config = config;
+      this.ins = new DataInputStream[config.shards];
+      this.outs = new DataOutputStream[config.shards];
+      this.outboxes = new ByteArrayOutputStream[config.shards];
+      for (int i = 0; i < config.shards; i++)
+      {
+         outboxes[i] = new ByteArrayOutputStream();
+      }
+   }
+
+   public static void run(WorldConfig config)
+   {
+      WorldConfig sharded = config.copy();
+      if (sharded.cols == 0 || sharded.rows == 0)
+      {
+         try (Scanner in = new Scanner(new File(config.saveFile)))
+         {
+            Point extent = WorldModel.measureExtent(in);
+            sharded.cols = sharded.cols != 0 ? sharded.cols : extent.x;
+            sharded.rows = sharded.rows != 0 ? sharded.rows : extent.y;
+         }
+         catch (FileNotFoundException e)
+         {
+            System.err.println(e.getMessage());
+            return;
+         }
+      }
+      if (sharded.seed == 0)
+      {
+         sharded.seed = System.nanoTime() | 1;
+      }
+      if (sharded.cols / sharded.shards < sharded.halo)
+      {
+         System.err.println(String.format(
+            "%d columns are too few for %d shards with a halo of %d",
+            sharded.cols, sharded.shards, sharded.halo));
+         return;
+      }
+
+      ShardCoordinator coordinator = new ShardCoordinator(sharded);
+      try
+      {
+         coordinator.coordinate();
+      }
+      catch (IOException e)
+      {
+         System.err.println(e.getMessage());
+      }
+      finally
+      {
+         coordinator.stopProcesses();
+      }
+   }
+
+   private void coordinate()
+      throws IOException
+   {
+      long start = System.currentTimeMillis();
+      try (ServerSocket server = new ServerSocket(0, config.shards,
+         InetAddress.getLoopbackAddress()))
+      {
+         for (int i = 0; i < config.shards; i++)
+         {
+            spawn(i, server.getLocalPort());
+         }
+         server.setSoTimeout(ACCEPT_POLL_MILLIS);
+         for (int i = 0; i < config.shards; i++)
+         {
+            Socket socket = accept(server);
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+               socket.getInputStream()));
+            int index = in.readInt();
+            ins[index] = in;
+            outs[index] = new DataOutputStream(new BufferedOutputStream(
+               socket.getOutputStream()));
+         }
+      }
+
+      // window 0 only exchanges ghosts, so every shard starts seeing its
+      // neighbours' borders
+      for (long time = 0; time <= config.duration; time += config.tickPeriod)
+      {
+         window(time);
+      }
+
+      for (DataOutputStream out : outs)
+      {
+         out.writeByte(ShardProtocol.STOP);
+         out.flush();
+      }
+      for (Process process : processes)
+      {
+         try
+         {
+            process.waitFor();
+         }
+         catch (InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+            return;
+         }
+      }
+
+      Map<EntityKind, Integer> total = new EnumMap<>(EntityKind.class);
+      for (EntityKind kind : EntityKind.values())
+      {
+         if (census[kind.ordinal()] != 0)
+         {
+            total.put(kind, census[kind.ordinal()]);
+         }
+      }
+      System.out.println(String.format(
+         "%d shards simulated %d ms in %d ms: %s, %d messages (%d KB) "
+         + "relayed, %d migration collisions, %d stale removes, seed %d",
+         config.shards, config.duration, System.currentTimeMillis() - start,
+         total, relayed, relayedBytes / 1024, collisions, staleRemoves,
+         config.seed));
+   }
+
+   /*
+      Waits for the next shard to connect, failing as soon as any shard
+      has exited instead, as one that dies before connecting never will.
+   */
+   private Socket accept(ServerSocket server)
+      throws IOException
+   {
+      while (true)
+      {
+         try
+         {
+            return server.accept();
+         }
+         catch (SocketTimeoutException e)
+         {
+            for (int i = 0; i < processes.size(); i++)
+            {
+               if (!processes.get(i).isAlive())
+               {
+                  throw new IOException(String.format(
+                     "shard %d exited with status %d", i,
+                     processes.get(i).exitValue()));
+               }
+            }
+         }
+      }
+   }
+
+   private void spawn(int index, int port)
+      throws IOException
+   {
+      List<String> command = new ArrayList<>();
+      command.add(System.getProperty("java.home") + File.separator + "bin"
+         + File.separator + "java");
+      command.add("-cp");
+      command.add(System.getProperty("java.class.path"));
+      command.add(VirtualWorld.class.getName());
+      for (String arg : config.args)
+      {
+         command.add(arg);
+      }
+      command.add("-cols=" + config.cols);
+      command.add("-rows=" + config.rows);
+      command.add("-seed=" + config.seed);
+      command.add("-coordinator=" + port);
+      command.add("-shard=" + index);
+      processes.add(new ProcessBuilder(command).inheritIO().start());
+   }
+
+   private void window(long time)
+      throws IOException
+   {
+      for (int i = 0; i < config.shards; i++)
+      {
+         outboxes[i].writeTo(outs[i]);
+         outboxes[i].reset();
+         outs[i].writeByte(ShardProtocol.ADVANCE);
+         outs[i].writeLong(time);
+         outs[i].flush();
+      }
+
+      for (int i = 0; i < config.shards; i++)
+      {
+         DataInputStream in = ins[i];
+         byte tag = in.readByte();
+         while (tag != ShardProtocol.END)
+         {
+            int dest = in.readInt();
+            byte[] body = new byte[in.readInt()];
+            in.readFully(body);
+
+            DataOutputStream outbox = new DataOutputStream(outboxes[dest]);
+            outbox.writeByte(tag);
+            outbox.writeInt(dest);
+            outbox.writeInt(body.length);
+            outbox.write(body);
+            relayed++;
+            relayedBytes += body.length;
+            tag = in.readByte();
+         }
+         for (int k = 0; k < census.length; k++)
+         {
+            census[k] = (i == 0 ? 0 : census[k]) + in.readInt();
+         }
+         collisions = (i == 0 ? 0 : collisions) + in.readInt();
+         staleRemoves = (i == 0 ? 0 : staleRemoves) + in.readInt();
+      }
+   }
+
+   private void stopProcesses()
+   {
+      for (Process process : processes)
+      {
+         process.destroy();
+      }
+   }
+}
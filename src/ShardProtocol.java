@@ -0,0 +1,56 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/*
+   Messages between a ShardCoordinator and its WorldShards, over plain
+   DataInput/DataOutput streams.  Every message starts with a one byte
+   tag.  Messages for another shard follow the tag with the destination
+   shard and a length-prefixed body; the coordinator holds them until the
+   window ends and passes them on unchanged, without looking inside.
+
+      ADVANCE  time                 coordinator -> shard: run to time
+      STOP                          coordinator -> shard: report and exit
+      MIGRATE  entity events        an entity moving into dest's columns,
+                                    with (kind, time, repeat) per event
+      GHOSTS   from count records   the sender's entities near dest
+      REMOVE   record               the sender consumed dest's entity
+      END      counts               shard -> coordinator: window done,
+                                    with its entity count per kind, then
+                                    its migration collisions and stale
+                                    removes so far
+
+   A record is (kind, id, x, y).
+*/
+final class ShardProtocol
+{
+   public static final byte ADVANCE = 1;
+   public static final byte STOP = 2;
+   public static final byte MIGRATE = 3;
+   public static final byte GHOSTS = 4;
+   public static final byte REMOVE = 5;
+   public static final byte END = 6;
+
+   private ShardProtocol()
+   {
+   }
+
+   public static void writeRecord(DataOutput out, Entity entity)
+      throws IOException
+   {
+      out.writeByte(entity.kind.ordinal());
+      out.writeUTF(entity.getId());
+      out.writeInt(entity.position.x);
+      out.writeInt(entity.position.y);
+   }
+
+   /* reads a record as an inert entity with no images */
+   public static Entity readRecord(DataInput in)
+      throws IOException
+   {
+      EntityKind kind = EntityKind.values()[in.readByte()];
+      String id = in.readUTF();
+      Point position = new Point(in.readInt(), in.readInt());
+      return new Entity(kind, id, position, null, 0, 0, 0, 0);
+   }
+}
@@ -0,0 +1,87 @@
+/*
+   Maps wall-clock time onto simulation time, the time events are queued
+   in.  The mapping is anchored at the latest pause, resume or change of
+   speed, so each of those costs the same however many events are queued
+   and leaves every one of them where it is: only the rate at which
+   simulation time passes changes.  The thread driving the scheduler reads
+   the clock while the one handling keys changes it, hence synchronized.
+*/
+final class SimulationClock
+{
+   public static final double MIN_SPEED = 1.0 / 16;
+   public static final double MAX_SPEED = 64;
+
+   // simulation milliseconds per wall-clock millisecond
+   private double speed;
+   private long wallAnchor;
+   private long simAnchor;
+   private boolean paused;
+
+   /* simulation time starts at zero at wall time wallStart */
+   public SimulationClock(double speed, long wallStart)
+   {
+      this.speed = speed;
+      this.wallAnchor = wallStart;
+   }
+
+   public synchronized long now(long wall)
+   {
+      if (paused)
+      {
+         return simAnchor;
+      }
+      return simAnchor + (long)((wall - wallAnchor) * speed);
+   }
+
+   public synchronized boolean isPaused()
+   {
+      return paused;
+   }
+
+   public synchronized double getSpeed()
+   {
+      return speed;
+   }
+
+   public synchronized void pause(long wall)
+   {
+      if (!paused)
+      {
+         reanchor(wall);
+         paused = true;
+      }
+   }
+
+   public synchronized void resume(long wall)
+   {
+      if (paused)
+      {
+         wallAnchor = wall;
+         paused = false;
+         notifyAll();
+      }
+   }
+
+   /* while paused, waits up to millis or until resumed */
+   public synchronized void awaitResume(long millis)
+      throws InterruptedException
+   {
+      if (paused)
+      {
+         wait(millis);
+      }
+   }
+
+   /* clamped to [MIN_SPEED, MAX_SPEED]; takes effect from wall on */
+   public synchronized void setSpeed(double speed, long wall)
+   {
+      reanchor(wall);
+      this.speed = Math.max(MIN_SPEED, Math.min(MAX_SPEED, speed));
+   }
+
+   private void reanchor(long wall)
+   {
+      simAnchor = now(wall);
+      wallAnchor = wall;
+   }
+}
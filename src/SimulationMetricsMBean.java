@@ -0,0 +1,20 @@
+/*
+   JMX view of SimulationMetrics.  Standard MBean interfaces have to be
+   public for the platform MBean server to introspect them.
+*/
+public interface SimulationMetricsMBean
+{
+   int getQueueDepth();
+   long getEventsScheduled();
+   long getEventsFired();
+   int getLastUpdateEventCount();
+   long getLagMillis();
+   long getUnscheduleCount();
+   long getLatenessP50Millis();
+   long getLatenessP99Millis();
+   long getLatenessMaxMillis();
+   long getFindNearestCalls();
+   long getFindNearestScanned();
+   String dump();
+   void reset();
+}
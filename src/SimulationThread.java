@@ -0,0 +1,92 @@
+/*
+   Advances the EventScheduler on its own thread and publishes a snapshot
+   of the visible region after every tick (and whenever the viewport
+   moves), so drawing never waits on the simulation or vice versa.
+*/
+final class SimulationThread
+   extends Thread
+{
+   private static final long SNAPSHOT_PERIOD = 16;
+
+   private final EventScheduler scheduler;
+   private final WorldModel world;
+   private final Viewport viewport;
+   private final SnapshotBuffer snapshots;
+   private final SimulationClock clock;
+   private final long tickPeriod;
+   private volatile boolean running = true;
+
+   public SimulationThread(EventScheduler scheduler, WorldModel world,
+      Viewport viewport, SnapshotBuffer snapshots, SimulationClock clock,
+      long tickPeriod)
+   {
+      super("simulation");
+      setDaemon(true);
+      this.scheduler = scheduler;
+      this.world = world;
+      this.viewport = viewport;
+      this.snapshots = snapshots;
+      this.clock = clock;
+      this.tickPeriod = tickPeriod;
+   }
+
+   public void shutdown()
+   {
+      running = false;
+      interrupt();
+   }
+
+   public void run()
+   {
+      long sequence = 0;
+      long nextTick = System.currentTimeMillis() + tickPeriod;
+      int lastCol = -1;
+      int lastRow = -1;
+
+      while (running)
+      {
+         long time = System.currentTimeMillis();
+         boolean changed = false;
+
+         // while paused, only the viewport moving needs a new snapshot
+         if (time >= nextTick && !clock.isPaused())
+         {
+            scheduler.setFocus(viewport.col, viewport.row, viewport.numCols,
+               viewport.numRows);
+            scheduler.updateOnTime(clock.now(time));
+            nextTick = scheduler.getLag() > 0 ? time : time + tickPeriod;
+            changed = true;
+         }
+
+         int col = viewport.col;
+         int row = viewport.row;
+         if (changed || col != lastCol || row != lastRow)
+         {
+            snapshots.back().capture(world, col, row, viewport.numCols,
+               viewport.numRows, ++sequence);
+            snapshots.publish();
+            lastCol = col;
+            lastRow = row;
+         }
+
+         long wait = Math.min(nextTick - System.currentTimeMillis(),
+            SNAPSHOT_PERIOD);
+         try
+         {
+            if (clock.isPaused())
+            {
+               // nextTick has passed, so without this the loop would spin
+               clock.awaitResume(SNAPSHOT_PERIOD);
+            }
+            else if (wait > 0)
+            {
+               Thread.sleep(wait);
+            }
+         }
+         catch (InterruptedException e)
+         {
+            return;
+         }
+      }
+   }
+}
@@ -0,0 +1,42 @@
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+   Lock-free hand-off of render snapshots between the simulation thread
+   and the render thread.  Each side owns one buffer outright and they
+   trade through a single atomic slot, so neither ever blocks or reads a
+   buffer the other is still writing.
+*/
+final class SnapshotBuffer
+{
+   private final AtomicReference<RenderSnapshot> published;
+   private RenderSnapshot back;
+   private RenderSnapshot front;
+
+   public SnapshotBuffer()
+   {
+      this.published = new AtomicReference<>(new RenderSnapshot());
+      this.back = new RenderSnapshot();
+      this.front = new RenderSnapshot();
+   }
+
+   /* simulation side: the buffer to fill before calling publish */
+   public RenderSnapshot back()
+   {
+      return back;
+   }
+
+   public void publish()
+   {
+      back = published.getAndSet(back);
+   }
+
+   /* render side: the newest snapshot published so far */
+   public RenderSnapshot acquire()
+   {
+      if (published.get().sequence > front.sequence)
+      {
+         front = published.getAndSet(front);
+      }
+      return front;
+   }
+}
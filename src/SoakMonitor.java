@@ -0,0 +1,70 @@
+/*
+   Long-running headless check that memory stays flat: advances the
+   simulation through days of virtual time and prints heap use, world and
+   scheduler sizes at every report interval, then the growth between the
+   first and last report.
+*/
+final class SoakMonitor
+{
+   public static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+   private static final long MILLIS_PER_HOUR = 60L * 60 * 1000;
+   private static final long BYTES_PER_KB = 1024;
+
+   private final HeadlessSimulation simulation;
+   private final long reportPeriod;
+
+   public SoakMonitor(HeadlessSimulation simulation, long reportPeriod)
+   {
+      this.simulation = simulation;
+      this.reportPeriod = reportPeriod;
+   }
+
+   public void run(long duration)
+   {
+      System.out.println(
+         "hours\theapKB\tentities\tqueued\torphaned\tsleepers\tpooled");
+
+      long[] first = sample();
+      long[] last = first;
+      long end = simulation.getTime() + duration;
+      while (simulation.getTime() < end)
+      {
+         simulation.advance(Math.min(reportPeriod,
+            end - simulation.getTime()));
+         last = sample();
+      }
+
+      System.out.println(String.format(
+         "growth over %d h: heap %+d KB, entities %+d, queued %+d, "
+         + "sleepers %+d, pooled %+d; %d orphaned events",
+         simulation.getTime() / MILLIS_PER_HOUR, last[1] - first[1],
+         last[2] - first[2], last[3] - first[3], last[5] - first[5],
+         last[6] - first[6], last[4]));
+   }
+
+   private long[] sample()
+   {
+      WorldModel world = simulation.getWorld();
+      EventScheduler scheduler = simulation.getScheduler();
+
+      System.gc();
+      Runtime runtime = Runtime.getRuntime();
+      long[] row = {
+         simulation.getTime() / MILLIS_PER_HOUR,
+         (runtime.totalMemory() - runtime.freeMemory()) / BYTES_PER_KB,
+         world.entities.size(),
+         scheduler.getQueueDepth(),
+         scheduler.countOrphanedEvents(world.entities),
+         world.getSleeperEntryCount(),
+         scheduler.getPooledEventCount()
+      };
+
+      StringBuilder line = new StringBuilder();
+      for (int i = 0; i < row.length; i++)
+      {
+         line.append(i == 0 ? "" : "\t").append(row[i]);
+      }
+      System.out.println(line);
+      return row;
+   }
+}
@@ -0,0 +1,193 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.InflaterInputStream;
+
+/*
+   A viewer of a SpectatorServer that keeps a mirror of the cells in its
+   view instead of drawing them: each occupied cell maps to the image key
+   and frame it would show.
+*/
+final class SpectatorClient
+{
+   private final Socket socket;
+   private final DataOutputStream out;
+   private final Map<Point, String> keys = new HashMap<>();
+   private final Map<Point, Integer> frames = new HashMap<>();
+   private int[] view;
+   private volatile long time = -1;
+   private volatile long received;
+   private volatile boolean closed;
+
+   public SpectatorClient(InetAddress address, int port)
+      throws IOException
+   {
+      this.socket = new Socket(address, port);
+      socket.setTcpNoDelay(true);
+      this.out = new DataOutputStream(socket.getOutputStream());
+      Thread reader = new Thread(this::read, "spectator client");
+      reader.setDaemon(true);
+      reader.start();
+   }
+
+   public void view(int col, int row, int cols, int rows)
+      throws IOException
+   {
+      out.writeByte(SpectatorServer.VIEW);
+      out.writeInt(col);
+      out.writeInt(row);
+      out.writeInt(cols);
+      out.writeInt(rows);
+      out.flush();
+   }
+
+   /* the time of the latest tick received, or -1 before the first */
+   public long getTime()
+   {
+      return time;
+   }
+
+   /* compressed bytes received so far */
+   public long getReceived()
+   {
+      return received;
+   }
+
+   /*
+      Waits until a tick at or after the given time has been applied;
+      false if that took longer than timeout milliseconds.
+   */
+   public boolean await(long until, long timeout)
+      throws InterruptedException
+   {
+      long deadline = System.currentTimeMillis() + timeout;
+      while (time < until && !closed)
+      {
+         if (System.currentTimeMillis() >= deadline)
+         {
+            return false;
+         }
+         Thread.sleep(1);
+      }
+      return time >= until;
+   }
+
+   public synchronized String getKey(Point pos)
+   {
+      return keys.get(pos);
+   }
+
+   public synchronized int getFrame(Point pos)
+   {
+      return frames.getOrDefault(pos, -1);
+   }
+
+   public synchronized int size()
+   {
+      return keys.size();
+   }
+
+   /* col, row, cols and rows of the view the mirror covers, or null */
+   public synchronized int[] getView()
+   {
+      return view == null ? null : view.clone();
+   }
+
+   public void close()
+      throws IOException
+   {
+      closed = true;
+      socket.close();
+   }
+
+   private void read()
+   {
+      try
+      {
+         DataInputStream in = new DataInputStream(new InflaterInputStream(
+            new BufferedInputStream(new FilterInputStream(
+               socket.getInputStream())
+            {
+               public int read()
+                  throws IOException
+               {
+                  int b = super.read();
+                  received += b < 0 ? 0 : 1;
+                  return b;
+               }
+
+               public int read(byte[] b, int off, int len)
+                  throws IOException
+               {
+                  int n = super.read(b, off, len);
+                  received += Math.max(n, 0);
+                  return n;
+               }
+            })));
+         while (true)
+         {
+            if (in.readByte() != SpectatorServer.TICK)
+            {
+               throw new IOException("expected a tick");
+            }
+            long tick = in.readLong();
+            int count = in.readInt();
+            synchronized (this)
+            {
+               for (int i = 0; i < count; i++)
+               {
+                  apply(in);
+               }
+            }
+            time = tick;
+         }
+      }
+      catch (IOException e)
+      {
+         closed = true;
+      }
+   }
+
+   private void apply(DataInputStream in)
+      throws IOException
+   {
+      byte op = in.readByte();
+      if (op == SpectatorServer.CLEAR)
+      {
+         view = new int[] { in.readInt(), in.readInt(), in.readInt(),
+            in.readInt() };
+         keys.clear();
+         frames.clear();
+         return;
+      }
+
+      Point at = new Point(in.readInt(), in.readInt());
+      switch (op)
+      {
+         case SpectatorServer.ADD:
+            keys.put(at, in.readUTF());
+            frames.put(at, in.readInt());
+            break;
+         case SpectatorServer.MOVE:
+            Point to = new Point(in.readInt(), in.readInt());
+            keys.put(to, keys.remove(at));
+            frames.put(to, frames.remove(at));
+            break;
+         case SpectatorServer.REMOVE:
+            keys.remove(at);
+            frames.remove(at);
+            break;
+         case SpectatorServer.FRAME:
+            frames.put(at, in.readInt());
+            break;
+         default:
+            throw new IOException(String.format("unexpected op %d", op));
+      }
+   }
+}
@@ -0,0 +1,452 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/*
+   Streams a running world to remote viewers, so any number of them can
+   watch one simulation without running it.  Each viewer subscribes to a
+   rectangle of cells and, after every tick, gets only the changes inside
+   it, as recorded from the world's mutations.  Cells identify entities
+   (there is at most one per cell), so a viewer needs nothing but the
+   image key and frame to draw them.
+
+   A viewer sends, uncompressed:
+
+      VIEW   col row cols rows        (re)subscribe to a rectangle
+
+   and receives one deflate stream, flushed after every tick:
+
+      TICK   time count               then count of the messages below
+      CLEAR  col row cols rows        the view was reset; adds follow
+      ADD    x y key frame
+      MOVE   x y toX toY
+      REMOVE x y
+      FRAME  x y frame
+
+   A view is clipped to the world and to MAX_VIEW_COLS x MAX_VIEW_ROWS,
+   a few windows' worth, so no viewer can make every tick cover the whole
+   map; CLEAR says what it was clipped to.
+
+   A viewer that falls more than MAX_BACKLOG ticks behind loses its
+   queued ticks and is sent its whole view again.
+*/
+final class SpectatorServer
+   implements WorldObserver
+{
+   public static final byte VIEW = 1;
+   public static final byte TICK = 2;
+   public static final byte CLEAR = 3;
+   public static final byte ADD = 4;
+   public static final byte MOVE = 5;
+   public static final byte REMOVE = 6;
+   public static final byte FRAME = 7;
+
+   private static final int MAX_BACKLOG = 64;
+   // four 20 x 15 windows
+   private static final int MAX_VIEW_COLS = 40;
+   private static final int MAX_VIEW_ROWS = 30;
+
+   private final WorldModel world;
+   private final List<Viewer> viewers = new CopyOnWriteArrayList<>();
+   // this tick's changes, in order; only recorded while anyone watches
+   private final List<Change> changes = new ArrayList<>();
+   private final AtomicLong rawBytes = new AtomicLong();
+   private ServerSocket server;
+
+   public SpectatorServer(WorldModel world)
+   {
+      this.world = world;
+   }
+
+   /*
+      Serves the world driven by scheduler on the given port (0 picks a
+      free one) until the process exits.
+   */
+   public static SpectatorServer attach(WorldModel world,
+      EventScheduler scheduler, InetAddress address, int port)
+      throws IOException
+   {
+      SpectatorServer spectators = new SpectatorServer(world);
+      spectators.listen(address, port);
+      world.addObserver(spectators);
+      scheduler.addObserver(spectators);
+      return spectators;
+   }
+
+   private void listen(InetAddress address, int port)
+      throws IOException
+   {
+      server = new ServerSocket(port, 0, address);
+      Thread acceptor = new Thread(this::accept, "spectator accept");
+      acceptor.setDaemon(true);
+      acceptor.start();
+   }
+
+   public int getPort()
+   {
+      return server.getLocalPort();
+   }
+
+   public int getViewerCount()
+   {
+      return viewers.size();
+   }
+
+   /* bytes of tick messages before compression, over all viewers */
+   public long getRawBytes()
+   {
+      return rawBytes.get();
+   }
+
+   private void accept()
+   {
+      while (!server.isClosed())
+      {
+         try
+         {
+            Socket socket = server.accept();
+            socket.setTcpNoDelay(true);
+            Viewer viewer = new Viewer(socket);
+            viewers.add(viewer);
+            viewer.start();
+         }
+         catch (IOException e)
+         {
+            return;
+         }
+      }
+   }
+
+   public void close()
+      throws IOException
+   {
+      server.close();
+      for (Viewer viewer : viewers)
+      {
+         viewer.close();
+      }
+   }
+
+   public void entityAdded(Entity entity)
+   {
+      if (!viewers.isEmpty())
+      {
+         changes.add(new Change(ADD, entity.position, null, entity));
+      }
+   }
+
+   public void entityMoved(Entity entity, Point from)
+   {
+      if (!viewers.isEmpty())
+      {
+         changes.add(new Change(MOVE, from, entity.position, entity));
+      }
+   }
+
+   public void entityRemoved(Entity entity, Point from)
+   {
+      if (!viewers.isEmpty())
+      {
+         changes.add(new Change(REMOVE, from, null, entity));
+      }
+   }
+
+   public void entityAnimated(Entity entity)
+   {
+      if (!viewers.isEmpty())
+      {
+         changes.add(new Change(FRAME, entity.position, null, entity));
+      }
+   }
+
+   public void tickEnded(long time)
+   {
+      for (Viewer viewer : viewers)
+      {
+         try
+         {
+            viewer.publish(time);
+         }
+         catch (IOException e)
+         {
+            // a ByteArrayOutputStream does not throw
+            throw new IllegalStateException(e);
+         }
+      }
+      changes.clear();
+   }
+
+   /*
+      One change as it happened: key and frame are taken at the time, as
+      later changes in the same tick may alter the entity again.
+   */
+   private static final class Change
+   {
+      final byte op;
+      final Point at;
+      final Point to;
+      final String key;
+      final int frame;
+
+      Change(byte op, Point at, Point to, Entity entity)
+      {
+         this.op = op;
+         this.at = at;
+         this.to = to;
+         this.key = Entity.imageKey(entity.kind);
+         this.frame = entity.imageIndex;
+      }
+   }
+
+   private final class Viewer
+   {
+      private final Socket socket;
+      private final BlockingQueue<byte[]> backlog =
+         new ArrayBlockingQueue<>(MAX_BACKLOG);
+      // set by the reader thread, taken by the simulation thread
+      private final AtomicReference<int[]> requested = new AtomicReference<>();
+      private final Thread writer;
+      private int[] view;
+      private boolean resend;
+
+      Viewer(Socket socket)
+      {
+         this.socket = socket;
+         this.writer = new Thread(this::write, "spectator write");
+         writer.setDaemon(true);
+      }
+
+      void start()
+      {
+         Thread reader = new Thread(this::read, "spectator read");
+         reader.setDaemon(true);
+         reader.start();
+         writer.start();
+      }
+
+      void close()
+      {
+         viewers.remove(this);
+         // the writer may be waiting for a tick that will never come
+         writer.interrupt();
+         try
+         {
+            socket.close();
+         }
+         catch (IOException e)
+         {
+            // already gone
+         }
+      }
+
+      private void read()
+      {
+         try
+         {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            while (true)
+            {
+               byte tag = in.readByte();
+               if (tag != VIEW)
+               {
+                  throw new IOException(String.format(
+                     "unexpected tag %d", tag));
+               }
+               requested.set(new int[] { in.readInt(), in.readInt(),
+                  in.readInt(), in.readInt() });
+            }
+         }
+         catch (IOException e)
+         {
+            close();
+         }
+      }
+
+      private void write()
+      {
+         Deflater deflater = new Deflater();
+         try
+         {
+            DataOutputStream out = new DataOutputStream(
+               new DeflaterOutputStream(new BufferedOutputStream(
+                  socket.getOutputStream()), deflater, true));
+            while (true)
+            {
+               out.write(backlog.take());
+               out.flush();
+            }
+         }
+         catch (IOException | InterruptedException e)
+         {
+            close();
+         }
+         finally
+         {
+            // a deflater passed in is not ended when its stream closes
+            deflater.end();
+         }
+      }
+
+      /*
+         Runs on the simulation thread at the end of a tick.
+      */
+      void publish(long time)
+         throws IOException
+      {
+         int[] subscription = requested.getAndSet(null);
+         if (subscription != null)
+         {
+            view = clip(subscription);
+            resend = true;
+         }
+         if (view == null)
+         {
+            return;
+         }
+
+         List<Change> visible = new ArrayList<>();
+         if (!resend)
+         {
+            for (Change change : changes)
+            {
+               if (sees(change.at) || (change.to != null && sees(change.to)))
+               {
+                  visible.add(change);
+               }
+            }
+         }
+
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+         DataOutputStream out = new DataOutputStream(bytes);
+         out.writeByte(TICK);
+         out.writeLong(time);
+         if (resend)
+         {
+            writeView(out);
+         }
+         else
+         {
+            out.writeInt(visible.size());
+            for (Change change : visible)
+            {
+               writeChange(out, change);
+            }
+         }
+
+         if (!backlog.offer(bytes.toByteArray()))
+         {
+            // too far behind: drop what is queued and start over
+            backlog.clear();
+            resend = true;
+            publish(time);
+            return;
+         }
+         resend = false;
+         rawBytes.addAndGet(bytes.size());
+      }
+
+      private int[] clip(int[] subscription)
+      {
+         int col = Math.max(0, Math.min(subscription[0], world.numCols));
+         int row = Math.max(0, Math.min(subscription[1], world.numRows));
+         return new int[] { col, row,
+            Math.max(0, Math.min(Math.min(subscription[2], MAX_VIEW_COLS),
+               world.numCols - col)),
+            Math.max(0, Math.min(Math.min(subscription[3], MAX_VIEW_ROWS),
+               world.numRows - row)) };
+      }
+
+      private boolean sees(Point pos)
+      {
+         return pos.x >= view[0] && pos.x < view[0] + view[2]
+            && pos.y >= view[1] && pos.y < view[1] + view[3];
+      }
+
+      /*
+         Picks the view's entities out of the world's entity list rather
+         than reading every cell, so a resend does not allocate per cell
+         and costs the same however large the view.
+      */
+      private void writeView(DataOutputStream out)
+         throws IOException
+      {
+         List<Entity> occupants = new ArrayList<>();
+         for (Entity entity : world.entities)
+         {
+            if (sees(entity.position))
+            {
+               occupants.add(entity);
+            }
+         }
+
+         out.writeInt(occupants.size() + 1);
+         out.writeByte(CLEAR);
+         for (int value : view)
+         {
+            out.writeInt(value);
+         }
+         for (Entity entity : occupants)
+         {
+            out.writeByte(ADD);
+            out.writeInt(entity.position.x);
+            out.writeInt(entity.position.y);
+            out.writeUTF(Entity.imageKey(entity.kind));
+            out.writeInt(entity.imageIndex);
+         }
+      }
+
+      /*
+         A move is only a move to a viewer that sees both ends; otherwise
+         the entity appears or disappears.
+      */
+      private void writeChange(DataOutputStream out, Change change)
+         throws IOException
+      {
+         byte op = change.op;
+         Point at = change.at;
+         if (op == MOVE && !sees(change.to))
+         {
+            op = REMOVE;
+         }
+         else if (op == MOVE && !sees(change.at))
+         {
+            op = ADD;
+            at = change.to;
+         }
+
+         out.writeByte(op);
+         out.writeInt(at.x);
+         out.writeInt(at.y);
+         switch (op)
+         {
+            case ADD:
+               out.writeUTF(change.key);
+               out.writeInt(change.frame);
+               break;
+            case MOVE:
+               out.writeInt(change.to.x);
+               out.writeInt(change.to.y);
+               break;
+            case FRAME:
+               out.writeInt(change.frame);
+               break;
+            default:
+               break;
+         }
+      }
+   }
+}
@@ -0,0 +1,214 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+   Runs the activities due in one updateOnTime optimistically.  Before the
+   scheduler starts firing, the movers among them are planned in parallel
+   against the world as it stands; planning only reads.  The scheduler
+   then fires events in their usual order, and each planned activity is
+   committed from its plan if no cell it read has been written and none
+   of its targets has changed since.  Anything else (failed validation,
+   activities that do more than walk) simply runs serially, so the end
+   result is always the same as a serial run.
+*/
+final class SpeculativeExecutor
+{
+   private final int planners;
+   // below this many due movers, planning is not worth a round trip
+   private final int minBatch;
+   private final ExecutorService pool;
+   private final List<Event> due = new ArrayList<>();
+   private final Map<Entity, ActivityPlan> plans = new IdentityHashMap<>();
+   private final Set<Point> written = new HashSet<>();
+   private WorldModel world;
+
+   private long planned;
+   private long committed;
+
+   public SpeculativeExecutor(int planners, int minBatch)
+   {
+      this.planners = planners;
+      this.minBatch = minBatch;
+      this.pool = Executors.newFixedThreadPool(planners, runnable -> {
+         Thread thread = new Thread(runnable, "planner");
+         thread.setDaemon(true);
+         return thread;
+      });
+   }
+
+   /* stops the planner threads; the executor cannot plan afterwards */
+   public void shutdown()
+   {
+      pool.shutdown();
+   }
+
+   public long getPlannedCount()
+   {
+      return planned;
+   }
+
+   public long getCommittedCount()
+   {
+      return committed;
+   }
+
+   /*
+      Plans the movers due before time.  Called by the scheduler before it
+      fires anything, while the world is quiet.
+   */
+   public void plan(EventQueue queue, long time, EventScheduler scheduler)
+   {
+      queue.collectDue(time, due);
+      List<Action> movers = new ArrayList<>();
+      for (Event event : due)
+      {
+         if (event.action.kind == ActionKind.ACTIVITY && isMover(event.entity))
+         {
+            movers.add(event.action);
+         }
+      }
+      due.clear();
+      if (movers.size() < minBatch)
+      {
+         return;
+      }
+
+      world = movers.get(0).world;
+      ActivityPlan[] results = new ActivityPlan[movers.size()];
+      List<Callable<Void>> slices = new ArrayList<>();
+      int sliceSize = (movers.size() + planners - 1) / planners;
+      for (int from = 0; from < movers.size(); from += sliceSize)
+      {
+         int start = from;
+         int end = Math.min(from + sliceSize, movers.size());
+         slices.add(() -> {
+            for (int i = start; i < end; i++)
+            {
+               results[i] = planOne(movers.get(i), scheduler);
+            }
+            return null;
+         });
+      }
+
+      try
+      {
+         for (Future<Void> slice : pool.invokeAll(slices))
+         {
+            slice.get();
+         }
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+         return;
+      }
+      catch (ExecutionException e)
+      {
+         throw new IllegalStateException("planning failed", e.getCause());
+      }
+
+      for (ActivityPlan plan : results)
+      {
+         if (plan != null)
+         {
+            plans.put(plan.entity, plan);
+            planned++;
+         }
+      }
+      world.recordWrites(written);
+   }
+
+   private ActivityPlan planOne(Action action, EventScheduler scheduler)
+   {
+      if (action.world != world)
+      {
+         return null;
+      }
+      Entity entity = action.entity;
+      ActivityPlan plan = new ActivityPlan();
+      plan.action = action;
+      return entity.planActivity(world,
+         scheduler.coarseSteps(entity.position), plan) ? plan : null;
+   }
+
+   private static boolean isMover(Entity entity)
+   {
+      return entity.kind == EntityKind.MINER_FULL
+         || entity.kind == EntityKind.MINER_NOT_FULL
+         || entity.kind == EntityKind.ORE_BLOB;
+   }
+
+   /*
+      Commits the planned outcome of an activity that is being fired, if
+      it has one that is still valid.  Returns false if the activity
+      should run normally.
+   */
+   public boolean commit(Action action, EventScheduler scheduler)
+   {
+      ActivityPlan plan = plans.remove(action.entity);
+      if (plan == null || plan.action != action || !isValid(plan))
+      {
+         return false;
+      }
+
+      action.entity.commitPlan(action.world, action.imageStore, scheduler,
+         plan);
+      committed++;
+      return true;
+   }
+
+   private boolean isValid(ActivityPlan plan)
+   {
+      Entity entity = plan.entity;
+      if (!entity.position.equals(plan.start)
+         || entity.target != plan.cachedTarget)
+      {
+         return false;
+      }
+
+      if (entity.kind == EntityKind.MINER_NOT_FULL)
+      {
+         if (entity.claim != plan.target)
+         {
+            return false;
+         }
+      }
+      else if (plan.searched && world.getKindVersion(plan.target.kind)
+         != plan.kindVersion)
+      {
+         return false;
+      }
+
+      for (Point cell : plan.reads)
+      {
+         if (written.contains(cell))
+         {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /*
+      Drops whatever was not committed once the scheduler is done firing.
+   */
+   public void finish()
+   {
+      if (world != null)
+      {
+         world.recordWrites(null);
+         world = null;
+      }
+      plans.clear();
+      written.clear();
+   }
+}
@@ -0,0 +1,81 @@
+import java.util.Arrays;
+
+/*
+   Stores only a band of columns of a larger world, for a shard that owns
+   part of it.  Cells outside the band read as empty default background;
+   writing one is a bug in the caller (an entity outran the shard's halo).
+*/
+final class StripeWorldGrid
+   implements WorldGrid
+{
+   private final int numRows;
+   private final int numCols;
+   private final int firstCol;
+   private final int width;
+   private final Background defaultBackground;
+   private final Entity[] occupants;
+   private final Background[] backgrounds;
+
+   public StripeWorldGrid(int numRows, int numCols, int firstCol,
+      int endCol, Background defaultBackground)
+   {
+      this.numRows = numRows;
+      this.numCols = numCols;
+      this.firstCol = Math.max(0, firstCol);
+      this.width = Math.min(numCols, endCol) - this.firstCol;
+      this.defaultBackground = defaultBackground;
+      this.occupants = new Entity[numRows * width];
+      this.backgrounds = new Background[numRows * width];
+      Arrays.fill(backgrounds, defaultBackground);
+   }
+
+   public int getNumRows()
+   {
+      return numRows;
+   }
+
+   public int getNumCols()
+   {
+      return numCols;
+   }
+
+   public Entity getOccupant(Point pos)
+   {
+      int index = index(pos);
+      return index < 0 ? null : occupants[index];
+   }
+
+   public void setOccupant(Point pos, Entity entity)
+   {
+      occupants[checkedIndex(pos)] = entity;
+   }
+
+   public Background getBackground(Point pos)
+   {
+      int index = index(pos);
+      return index < 0 ? defaultBackground : backgrounds[index];
+   }
+
+   public void setBackground(Point pos, Background background)
+   {
+      backgrounds[checkedIndex(pos)] = background;
+   }
+
+   private int index(Point pos)
+   {
+      int col = pos.x - firstCol;
+      return col < 0 || col >= width ? -1 : pos.y * width + col;
+   }
+
+   private int checkedIndex(Point pos)
+   {
+      int index = index(pos);
+      if (index < 0)
+      {
+         throw new IllegalStateException(String.format(
+            "cell %d,%d is outside columns %d-%d", pos.x, pos.y, firstCol,
+            firstCol + width - 1));
+      }
+      return index;
+   }
+}
@@ -1,7 +1,8 @@
 final class Viewport
 {
-   public int row;
-   public int col;
+   // written by the render thread, read by the simulation thread
+   public volatile int row;
+   public volatile int col;
    public int numRows;
    public int numCols;
 
@@ -1,46 +1,41 @@
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Random;
 import java.util.Scanner;
 import processing.core.*;
 
 public final class VirtualWorld
    extends PApplet
 {
-   private static final int TIMER_ACTION_PERIOD = 100;
-
    private static final int VIEW_WIDTH = 640;
    private static final int VIEW_HEIGHT = 480;
-   private static final int TILE_WIDTH = 32;
-   private static final int TILE_HEIGHT = 32;
-   private static final int WORLD_WIDTH_SCALE = 2;
-   private static final int WORLD_HEIGHT_SCALE = 2;
-
-   private static final int VIEW_COLS = VIEW_WIDTH / TILE_WIDTH;
-   private static final int VIEW_ROWS = VIEW_HEIGHT / TILE_HEIGHT;
-   private static final int WORLD_COLS = VIEW_COLS * WORLD_WIDTH_SCALE;
-   private static final int WORLD_ROWS = VIEW_ROWS * WORLD_HEIGHT_SCALE;
 
-   private static final String IMAGE_LIST_FILE_NAME = "imagelist";
    private static final String DEFAULT_IMAGE_NAME = "background_default";
    private static final int DEFAULT_IMAGE_COLOR = 0x808080;
 
-   private static final String LOAD_FILE_NAME = "gaia.sav";
-
-   private static final String FAST_FLAG = "-fast";
-   private static final String FASTER_FLAG = "-faster";
-   private static final String FASTEST_FLAG = "-fastest";
-   private static final double FAST_SCALE = 0.5;
-   private static final double FASTER_SCALE = 0.25;
-   private static final double FASTEST_SCALE = 0.10;
+   private static final long DRAIN_BUDGET_MILLIS = 10;
+   private static final long METRICS_REPORT_SECONDS = 10;
+   // frames drawn before a benchmark starts timing
+   private static final int BENCH_WARMUP_FRAMES = 120;
+   // uncapped, so a benchmark frame lasts as long as its work does
+   private static final float BENCH_FRAME_RATE = 1000;
 
-   private static double timeScale = 1.0;
+   private static WorldConfig config = new WorldConfig();
+   private static SimulationMetrics sharedMetrics;
 
    private ImageStore imageStore;
    private WorldModel world;
    private WorldView view;
    private EventScheduler scheduler;
+   private SnapshotBuffer snapshots;
+   private SimulationClock clock;
 
    private long next_time;
+   private int benchFrame;
+   private long benchFrameStart;
+   private long[] benchNanos = new long[2];
 
    public void settings()
    {
@@ -52,32 +47,288 @@ public final class VirtualWorld
    */
    public void setup()
    {
-      this.imageStore = new ImageStore(
-         createImageColored(TILE_WIDTH, TILE_HEIGHT, DEFAULT_IMAGE_COLOR));
-      this.world = new WorldModel(WORLD_ROWS, WORLD_COLS,
-         createDefaultBackground(imageStore));
-      this.view = new WorldView(VIEW_ROWS, VIEW_COLS, this, world,
-         TILE_WIDTH, TILE_HEIGHT);
-      this.scheduler = new EventScheduler(timeScale);
+      this.imageStore = new ImageStore(createImageColored(config.tileWidth,
+         config.tileHeight, DEFAULT_IMAGE_COLOR));
+      this.world = createWorld(config, imageStore);
+      this.view = new WorldView(VIEW_HEIGHT / config.tileHeight,
+         VIEW_WIDTH / config.tileWidth, this, world, config.tileWidth,
+         config.tileHeight);
+      view.setBlitting(config.blit);
+      this.clock = new SimulationClock(1 / config.timeScale,
+         System.currentTimeMillis());
+      this.scheduler = createScheduler(config, 0);
 
-      loadImages(IMAGE_LIST_FILE_NAME, imageStore, this);
-      loadWorld(world, LOAD_FILE_NAME, imageStore);
+      loadImages(config.imageListFile, imageStore, this);
+      loadWorld(world, config, imageStore);
 
       scheduleActions(world, scheduler, imageStore);
 
-      next_time = System.currentTimeMillis() + TIMER_ACTION_PERIOD;
+      // building the map reads every background, which would page in
+      // every chunk of a chunked world
+      if (config.grid != GridKind.CHUNKED)
+      {
+         WorldMap map = new WorldMap(world);
+         world.addObserver(map);
+         view.setMap(map);
+      }
+
+      if (config.spectatePort > 0)
+      {
+         try
+         {
+            SpectatorServer.attach(world, scheduler, null, config.spectatePort);
+         }
+         catch (IOException e)
+         {
+            System.err.println(e.getMessage());
+         }
+      }
+
+      if (config.threads > 1)
+      {
+         this.snapshots = new SnapshotBuffer();
+         new SimulationThread(scheduler, world, view.getViewport(),
+            snapshots, clock, config.tickPeriod).start();
+      }
+
+      next_time = System.currentTimeMillis() + config.tickPeriod;
+      if (config.benchFrames > 0)
+      {
+         frameRate(BENCH_FRAME_RATE);
+      }
+   }
+
+   /*
+      Sizes the world from the configuration, or from the extent of the
+      save file when no size is given, but never smaller than the view.
+   */
+   static WorldModel createWorld(WorldConfig config, ImageStore imageStore)
+   {
+      if (config.grid == GridKind.CHUNKED)
+      {
+         return createChunkedWorld(config, imageStore);
+      }
+
+      int cols = config.cols;
+      int rows = config.rows;
+      if (cols == 0 || rows == 0)
+      {
+         Point extent = measureWorld(config.saveFile);
+         cols = cols != 0 ? cols : extent.x;
+         rows = rows != 0 ? rows : extent.y;
+      }
+      cols = Math.max(cols, VIEW_WIDTH / config.tileWidth);
+      rows = Math.max(rows, VIEW_HEIGHT / config.tileHeight);
+
+      WorldModel world = new WorldModel(createGrid(config, rows, cols,
+         createDefaultBackground(imageStore)));
+      if (config.metrics)
+      {
+         world.setMetrics(metrics());
+      }
+      if (config.seed != 0)
+      {
+         world.setRandom(new Random(config.seed));
+      }
+      if (config.countIndex)
+      {
+         world.enableCountIndex();
+      }
+      return world;
+   }
+
+   private static WorldModel createChunkedWorld(WorldConfig config,
+      ImageStore imageStore)
+   {
+      try
+      {
+         ChunkedWorldGrid grid = new ChunkedWorldGrid(
+            Paths.get(config.chunkDirectory), config.chunkBudget,
+            createDefaultBackground(imageStore));
+         WorldModel world = new WorldModel(grid);
+         grid.attach(world, imageStore);
+         if (config.metrics)
+         {
+            world.setMetrics(metrics());
+         }
+         if (config.seed != 0)
+         {
+            world.setRandom(new Random(config.seed));
+         }
+         if (config.countIndex)
+         {
+            world.enableCountIndex();
+         }
+         return world;
+      }
+      catch (IOException e)
+      {
+         throw new IllegalArgumentException(String.format(
+            "cannot open chunked world %s: %s", config.chunkDirectory,
+            e.getMessage()));
+      }
+   }
+
+   /*
+      A chunked world pages its entities in as they are needed, so there
+      is no save file to load up front.
+   */
+   static void loadWorld(WorldModel world, WorldConfig config,
+      ImageStore imageStore)
+   {
+      if (config.grid != GridKind.CHUNKED)
+      {
+         loadWorld(world, config.saveFile, imageStore);
+      }
+   }
+
+   private static WorldGrid createGrid(WorldConfig config, int rows, int cols,
+      Background defaultBackground)
+   {
+      if (config.grid == GridKind.CONCURRENT)
+      {
+         return new ConcurrentWorldGrid(rows, cols, defaultBackground);
+      }
+      if (config.grid == GridKind.OFFHEAP)
+      {
+         try
+         {
+            return new OffHeapWorldGrid(rows, cols, defaultBackground,
+               config.gridFile == null ? null : Paths.get(config.gridFile));
+         }
+         catch (IOException e)
+         {
+            System.err.println(e.getMessage());
+         }
+      }
+      return new ArrayWorldGrid(rows, cols, defaultBackground);
+   }
+
+   static EventScheduler createScheduler(WorldConfig config, long startTime)
+   {
+      EventScheduler scheduler = new EventScheduler(startTime,
+         config.scheduler);
+      if (config.budgeted)
+      {
+         scheduler.setDrainBudget(DRAIN_BUDGET_MILLIS, 0);
+      }
+      scheduler.setCoalesceOverdue(config.coalesce);
+      if (config.lod)
+      {
+         scheduler.setLevelOfDetail(new LevelOfDetail(config.lodMargin));
+      }
+      if (config.speculate)
+      {
+         scheduler.setSpeculator(new SpeculativeExecutor(config.planners,
+            config.minBatch));
+      }
+      if (config.metrics)
+      {
+         scheduler.setMetrics(metrics());
+      }
+      return scheduler;
    }
 
+   static synchronized SimulationMetrics metrics()
+   {
+      if (sharedMetrics == null)
+      {
+         sharedMetrics = new SimulationMetrics();
+         sharedMetrics.register();
+         sharedMetrics.startReporting(METRICS_REPORT_SECONDS);
+      }
+      return sharedMetrics;
+   }
+
+   private static Point measureWorld(String filename)
+   {
+      try
+      {
+         Scanner in = new Scanner(new File(filename));
+         return WorldModel.measureExtent(in);
+      }
+      catch (FileNotFoundException e)
+      {
+         System.err.println(e.getMessage());
+         return new Point(0, 0);
+      }
+   }
    public void draw()
    {
+      if (config.benchFrames > 0)
+      {
+         timeBenchFrame();
+      }
+
+      if (snapshots != null)
+      {
+         drawView(snapshots.acquire());
+         return;
+      }
+
       long time = System.currentTimeMillis();
-      if (time >= next_time)
+      if (time >= next_time && !clock.isPaused())
       {
-         this.scheduler.updateOnTime(time);
-         next_time = time + TIMER_ACTION_PERIOD;
+         Viewport viewport = view.getViewport();
+         this.scheduler.setFocus(viewport.col, viewport.row,
+            viewport.numCols, viewport.numRows);
+         this.world.pageChunks(scheduler);
+         this.scheduler.updateOnTime(clock.now(time));
+         // keep draining on the next frame while a budgeted drain lags
+         next_time = scheduler.getLag() > 0 ? time
+            : time + config.tickPeriod;
       }
 
-      view.drawViewport();
+      drawView(null);
+   }
+
+   /*
+      Draws the view from a snapshot, or from the live world when there is
+      none.  While benchmarking, frames alternate between drawing through
+      PApplet.image and blitting.
+   */
+   private void drawView(RenderSnapshot snapshot)
+   {
+      if (config.benchFrames > 0)
+      {
+         view.setBlitting(benchFrame % 2 == 1);
+         benchFrame++;
+      }
+
+      if (snapshot != null)
+      {
+         view.drawViewport(snapshot);
+      }
+      else
+      {
+         view.drawViewport();
+      }
+   }
+
+   /*
+      Charges the time since the last draw to the frame it drew, so each
+      way is timed over the whole frame, including the pixels reaching
+      the screen after draw returns.
+   */
+   private void timeBenchFrame()
+   {
+      long now = System.nanoTime();
+      int frame = benchFrame - 1;
+      if (frame >= BENCH_WARMUP_FRAMES)
+      {
+         benchNanos[frame % 2] += now - benchFrameStart;
+         if (frame + 1 == BENCH_WARMUP_FRAMES + 2 * config.benchFrames)
+         {
+            System.out.println(String.format(
+               "%d frames each: %.3f ms per frame through image, "
+               + "%.3f ms blitting%s", config.benchFrames,
+               benchNanos[0] / 1e6 / config.benchFrames,
+               benchNanos[1] / 1e6 / config.benchFrames,
+               view.isBlitting() ? "" : " (unsupported, so not blitting)"));
+            exit();
+         }
+      }
+      benchFrameStart = now;
    }
 
    public void keyPressed()
@@ -104,15 +355,76 @@ public final class VirtualWorld
          }
          view.shiftView(dx, dy);
       }
+      else if (key == 'b')
+      {
+         view.setBlitting(!view.isBlitting());
+      }
+      else if (key == '-')
+      {
+         view.zoomOut();
+      }
+      else if (key == '+' || key == '=')
+      {
+         view.zoomIn();
+      }
+      else if (key == ' ')
+      {
+         if (clock.isPaused())
+         {
+            resume();
+         }
+         else
+         {
+            pause();
+         }
+      }
+      else if (key == '[')
+      {
+         setSpeed(clock.getSpeed() / 2);
+      }
+      else if (key == ']')
+      {
+         setSpeed(clock.getSpeed() * 2);
+      }
    }
 
-   private static Background createDefaultBackground(ImageStore imageStore)
+   /*
+      While paused the scheduler is not run at all; queued events keep
+      their times and fire once simulation time catches up after resume.
+   */
+   public void pause()
+   {
+      clock.pause(System.currentTimeMillis());
+   }
+
+   public void resume()
+   {
+      clock.resume(System.currentTimeMillis());
+   }
+
+   public boolean isPaused()
+   {
+      return clock.isPaused();
+   }
+
+   /* simulation milliseconds per wall-clock millisecond */
+   public void setSpeed(double speed)
+   {
+      clock.setSpeed(speed, System.currentTimeMillis());
+   }
+
+   public double getSpeed()
+   {
+      return clock.getSpeed();
+   }
+
+   static Background createDefaultBackground(ImageStore imageStore)
    {
       return new Background(DEFAULT_IMAGE_NAME,
               imageStore.getImageList(DEFAULT_IMAGE_NAME));
    }
 
-   private static PImage createImageColored(int width, int height, int color)
+   static PImage createImageColored(int width, int height, int color)
    {
       PImage img = new PImage(width, height, RGB);
       img.loadPixels();
@@ -138,7 +450,7 @@ public final class VirtualWorld
       }
    }
 
-   private static void loadWorld(WorldModel world, String filename,
+   static void loadWorld(WorldModel world, String filename,
       ImageStore imageStore)
    {
       try
@@ -152,7 +464,7 @@ public final class VirtualWorld
       }
    }
 
-   private static void scheduleActions(WorldModel world,
+   static void scheduleActions(WorldModel world,
       EventScheduler scheduler, ImageStore imageStore)
    {
       for (Entity entity : world.entities)
@@ -161,28 +473,57 @@ public final class VirtualWorld
       }
    }
 
-   private static void parseCommandLine(String [] args)
+   private static void writeChunks(String saveFile, String directory)
    {
-      for (String arg : args)
+      try (Scanner in = new Scanner(new File(saveFile)))
       {
-         switch (arg)
-         {
-            case FAST_FLAG:
-               timeScale = Math.min(FAST_SCALE, timeScale);
-               break;
-            case FASTER_FLAG:
-               timeScale = Math.min(FASTER_SCALE, timeScale);
-               break;
-            case FASTEST_FLAG:
-               timeScale = Math.min(FASTEST_SCALE, timeScale);
-               break;
-         }
+         ChunkedWorldGrid.writeChunks(in, Paths.get(directory));
+      }
+      catch (IOException e)
+      {
+         System.err.println(e.getMessage());
       }
    }
 
    public static void main(String [] args)
    {
-      parseCommandLine(args);
-      PApplet.main(VirtualWorld.class);
+      try
+      {
+         config = WorldConfig.parse(args);
+      }
+      catch (IllegalArgumentException e)
+      {
+         System.err.println(e.getMessage());
+         return;
+      }
+
+      if (config.writeChunks != null)
+      {
+         writeChunks(config.saveFile, config.writeChunks);
+      }
+      else if (config.shardIndex >= 0)
+      {
+         WorldShard.run(config);
+      }
+      else if (config.shards > 0)
+      {
+         ShardCoordinator.run(config);
+      }
+      else if (config.batchFile != null)
+      {
+         BatchRunner.run(config);
+      }
+      else if (config.stressThreads > 0)
+      {
+         GridStress.run(config);
+      }
+      else if (config.headless)
+      {
+         HeadlessSimulation.run(config);
+      }
+      else
+      {
+         PApplet.main(VirtualWorld.class);
+      }
    }
 }
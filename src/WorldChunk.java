@@ -0,0 +1,22 @@
+import java.util.Arrays;
+
+/*
+   One square block of cells of a ChunkedWorldGrid, stored row by row.
+*/
+final class WorldChunk
+{
+   public final int chunkCol;
+   public final int chunkRow;
+   public final Background[] backgrounds;
+   public final Entity[] occupants;
+
+   public WorldChunk(int chunkCol, int chunkRow, int size,
+      Background defaultBackground)
+   {
+      this.chunkCol = chunkCol;
+      this.chunkRow = chunkRow;
+      this.backgrounds = new Background[size * size];
+      this.occupants = new Entity[size * size];
+      Arrays.fill(backgrounds, defaultBackground);
+   }
+}
@@ -0,0 +1,433 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/*
+   Run-time settings for a world: read from an optional properties file
+   (-config=<file>) and then overridden by -key=value command line
+   arguments.  Boolean settings may be given as a bare -key, which keeps
+   the original -fast/-metrics style flags working.
+*/
+final class WorldConfig
+   implements Cloneable
+{
+   private static final String CONFIG_KEY = "config";
+   private static final String COLS_KEY = "cols";
+   private static final String ROWS_KEY = "rows";
+   private static final String SAVE_KEY = "save";
+   private static final String IMAGE_LIST_KEY = "imagelist";
+   private static final String TILE_WIDTH_KEY = "tilewidth";
+   private static final String TILE_HEIGHT_KEY = "tileheight";
+   private static final String TICK_KEY = "tick";
+   private static final String TIME_SCALE_KEY = "timescale";
+   private static final String SCHEDULER_KEY = "scheduler";
+   private static final String GRID_KEY = "grid";
+   private static final String GRID_FILE_KEY = "gridfile";
+   private static final String CHUNKS_KEY = "chunks";
+   private static final String CHUNK_BUDGET_KEY = "chunkbudget";
+   private static final String WRITE_CHUNKS_KEY = "writechunks";
+   private static final String LOD_KEY = "lod";
+   private static final String LOD_MARGIN_KEY = "lodmargin";
+   private static final String SPECULATE_KEY = "speculate";
+   private static final String PLANNERS_KEY = "planners";
+   private static final String MIN_BATCH_KEY = "minbatch";
+   private static final String SEED_KEY = "seed";
+   private static final String VERIFY_KEY = "verify";
+   private static final String STRESS_KEY = "stress";
+   private static final String BATCH_KEY = "batch";
+   private static final String BATCH_OUTPUT_KEY = "batchout";
+   private static final String BATCH_THREADS_KEY = "batchthreads";
+   private static final String FORKS_KEY = "forks";
+   private static final String FORK_AT_KEY = "forkat";
+   private static final String SHARDS_KEY = "shards";
+   private static final String SHARD_KEY = "shard";
+   private static final String COORDINATOR_KEY = "coordinator";
+   private static final String HALO_KEY = "halo";
+   private static final String SPECTATE_KEY = "spectate";
+   private static final String SPECTATORS_KEY = "spectators";
+   private static final String BLIT_KEY = "blit";
+   private static final String BENCH_FRAMES_KEY = "benchframes";
+   private static final String COUNT_INDEX_KEY = "countindex";
+   private static final String THREADS_KEY = "threads";
+   private static final String HEADLESS_KEY = "headless";
+   private static final String DURATION_KEY = "duration";
+   private static final String METRICS_KEY = "metrics";
+   private static final String BUDGETED_KEY = "budgeted";
+   private static final String COALESCE_KEY = "coalesce";
+   private static final String SIM_THREAD_KEY = "simthread";
+   private static final String SOAK_KEY = "soak";
+   private static final String SOAK_REPORT_KEY = "soakreport";
+
+   private static final String FAST_KEY = "fast";
+   private static final String FASTER_KEY = "faster";
+   private static final String FASTEST_KEY = "fastest";
+   private static final double FAST_SCALE = 0.5;
+   private static final double FASTER_SCALE = 0.25;
+   private static final double FASTEST_SCALE = 0.10;
+
+   /* zero means "derive from the extent of the save file" */
+   public int cols = 0;
+   public int rows = 0;
+   public String saveFile = "gaia.sav";
+   public String imageListFile = "imagelist";
+   public int tileWidth = 32;
+   public int tileHeight = 32;
+   public int tickPeriod = 100;
+   public double timeScale = 1.0;
+   public SchedulerKind scheduler = SchedulerKind.HEAP;
+   /* off-heap grids are memory-mapped from gridFile when one is given */
+   public GridKind grid = GridKind.ARRAY;
+   public String gridFile = null;
+   /* chunked grids page from chunkDirectory, keeping at most chunkBudget
+      chunks resident; writeChunks converts the save file into one */
+   public String chunkDirectory = null;
+   public int chunkBudget = 256;
+   public String writeChunks = null;
+   /* one thread runs simulation and rendering together; more adds a
+      dedicated simulation thread */
+   public int threads = 1;
+   public boolean headless = false;
+   /* virtual milliseconds to simulate in headless mode */
+   public long duration = 60000;
+   /* headless soak test: virtual days to run (0 = off) and virtual
+      milliseconds between reports */
+   public long soakDays = 0;
+   public long soakReport = 3600000;
+   /* coarse simulation beyond lodMargin cells outside the view */
+   public boolean lod = false;
+   public int lodMargin = 10;
+   /* plan each batch of at least minBatch due movers on planners threads */
+   public boolean speculate = false;
+   public int planners = Runtime.getRuntime().availableProcessors();
+   public int minBatch = 64;
+   /* seeds the world's randomness; 0 picks a fresh seed every run */
+   public long seed = 0;
+   /* headless: run serially and speculatively side by side and compare */
+   public boolean verify = false;
+   /* threads for the concurrent grid stress run, which lasts duration
+      wall-clock milliseconds (0 = off) */
+   public int stressThreads = 0;
+   /* parameter sweep file for a batch of headless runs (null = off),
+      where to write their results and how many to run at once */
+   public String batchFile = null;
+   public String batchOutput = "batch.tsv";
+   public int batchThreads = Runtime.getRuntime().availableProcessors();
+   /* headless: fork this many copies at forkAt virtual ms (0 = off) */
+   public int forks = 0;
+   public long forkAt = 600000;
+   /* headless world split across this many local processes (0 = off);
+      shards mirror halo columns of their neighbours */
+   public int shards = 0;
+   public int halo = LevelOfDetail.COARSE_STEPS;
+   /* set by the coordinator on the processes it spawns */
+   public int shardIndex = -1;
+   public int coordinatorPort = 0;
+   /* port to stream the world to remote viewers on (0 = off) */
+   public int spectatePort = 0;
+   /* headless check: attach this many local viewers and compare */
+   public int spectators = 0;
+   /* draw by writing pixels rather than through PApplet.image */
+   public boolean blit = false;
+   /* draw this many frames each way, alternating, report and exit */
+   public int benchFrames = 0;
+   /* per-kind rectangle counts, also pruning nearest searches */
+   public boolean countIndex = false;
+   /* the command line this configuration came from */
+   public String[] args = new String[0];
+   public boolean metrics = false;
+   public boolean budgeted = false;
+   public boolean coalesce = false;
+
+   public static WorldConfig parse(String [] args)
+   {
+      WorldConfig config = new WorldConfig();
+      // in argument order, so a later flag overrides an earlier one
+      Map<String, String> cli = new LinkedHashMap<>();
+      config.args = args.clone();
+
+      for (String arg : args)
+      {
+         if (!arg.startsWith("-"))
+         {
+            throw new IllegalArgumentException(
+               String.format("unexpected argument %s", arg));
+         }
+         String setting = arg.substring(1);
+         int split = setting.indexOf('=');
+         String key = split < 0 ? setting : setting.substring(0, split);
+         cli.remove(key);
+         cli.put(key, split < 0 ? "true" : setting.substring(split + 1));
+      }
+
+      String file = cli.get(CONFIG_KEY);
+      if (file != null)
+      {
+         config.apply(loadProperties(file));
+      }
+      config.apply(cli);
+
+      if (config.shards > 0 && config.halo < (config.lod
+         ? LevelOfDetail.COARSE_STEPS : 1))
+      {
+         throw new IllegalArgumentException(
+            "the halo must cover the furthest an entity moves at once");
+      }
+      if (config.verify && config.grid == GridKind.CONCURRENT)
+      {
+         throw new IllegalArgumentException(
+            "verify needs a grid whose entities keep a fixed order");
+      }
+      if (config.grid == GridKind.CHUNKED && (config.speculate
+         || config.verify))
+      {
+         throw new IllegalArgumentException(
+            "speculation needs a grid that can be read from several threads");
+      }
+      if (config.grid == GridKind.CHUNKED)
+      {
+         if (config.chunkDirectory == null)
+         {
+            throw new IllegalArgumentException("chunked grid needs -chunks");
+         }
+         if (config.threads > 1)
+         {
+            throw new IllegalArgumentException(
+               "chunked grid needs a single simulation thread");
+         }
+      }
+
+      return config;
+   }
+
+   public WorldConfig copy()
+   {
+      try
+      {
+         return (WorldConfig)clone();
+      }
+      catch (CloneNotSupportedException e)
+      {
+         throw new AssertionError(e);
+      }
+   }
+
+   private static Properties loadProperties(String filename)
+   {
+      Properties properties = new Properties();
+      try (InputStream in = new FileInputStream(filename))
+      {
+         properties.load(in);
+      }
+      catch (IOException e)
+      {
+         throw new IllegalArgumentException(
+            String.format("cannot read %s: %s", filename, e.getMessage()));
+      }
+      return properties;
+   }
+
+   private void apply(Properties properties)
+   {
+      for (String key : properties.stringPropertyNames())
+      {
+         set(key, properties.getProperty(key).trim());
+      }
+   }
+
+   private void apply(Map<String, String> settings)
+   {
+      for (Map.Entry<String, String> setting : settings.entrySet())
+      {
+         set(setting.getKey(), setting.getValue().trim());
+      }
+   }
+
+   private void set(String key, String value)
+   {
+      switch (key)
+      {
+         case CONFIG_KEY:
+            break;
+         case COLS_KEY:
+            cols = parsePositive(key, value);
+            break;
+         case ROWS_KEY:
+            rows = parsePositive(key, value);
+            break;
+         case SAVE_KEY:
+            saveFile = value;
+            break;
+         case IMAGE_LIST_KEY:
+            imageListFile = value;
+            break;
+         case TILE_WIDTH_KEY:
+            tileWidth = parsePositive(key, value);
+            break;
+         case TILE_HEIGHT_KEY:
+            tileHeight = parsePositive(key, value);
+            break;
+         case TICK_KEY:
+            tickPeriod = parsePositive(key, value);
+            break;
+         case TIME_SCALE_KEY:
+            timeScale = Double.parseDouble(value);
+            if (timeScale <= 0)
+            {
+               throw new IllegalArgumentException("timescale must be positive");
+            }
+            break;
+         case SCHEDULER_KEY:
+            scheduler = SchedulerKind.valueOf(value.toUpperCase());
+            break;
+         case GRID_KEY:
+            grid = GridKind.valueOf(value.toUpperCase());
+            break;
+         case GRID_FILE_KEY:
+            grid = GridKind.OFFHEAP;
+            gridFile = value;
+            break;
+         case CHUNKS_KEY:
+            grid = GridKind.CHUNKED;
+            chunkDirectory = value;
+            break;
+         case CHUNK_BUDGET_KEY:
+            chunkBudget = parsePositive(key, value);
+            break;
+         case WRITE_CHUNKS_KEY:
+            writeChunks = value;
+            break;
+         case LOD_KEY:
+            lod = Boolean.parseBoolean(value);
+            break;
+         case LOD_MARGIN_KEY:
+            lod = true;
+            lodMargin = Integer.parseInt(value);
+            break;
+         case SPECULATE_KEY:
+            speculate = Boolean.parseBoolean(value);
+            break;
+         case PLANNERS_KEY:
+            speculate = true;
+            planners = parsePositive(key, value);
+            break;
+         case MIN_BATCH_KEY:
+            speculate = true;
+            minBatch = parsePositive(key, value);
+            break;
+         case SEED_KEY:
+            seed = Long.parseLong(value);
+            break;
+         case VERIFY_KEY:
+            headless = true;
+            verify = Boolean.parseBoolean(value);
+            break;
+         case STRESS_KEY:
+            stressThreads = parsePositive(key, value);
+            break;
+         case BATCH_KEY:
+            batchFile = value;
+            break;
+         case BATCH_OUTPUT_KEY:
+            batchOutput = value;
+            break;
+         case BATCH_THREADS_KEY:
+            batchThreads = parsePositive(key, value);
+            break;
+         case FORKS_KEY:
+            headless = true;
+            forks = parsePositive(key, value);
+            break;
+         case FORK_AT_KEY:
+            forkAt = parsePositiveLong(key, value);
+            break;
+         case SHARDS_KEY:
+            headless = true;
+            shards = parsePositive(key, value);
+            break;
+         case SHARD_KEY:
+            shardIndex = Integer.parseInt(value);
+            break;
+         case COORDINATOR_KEY:
+            coordinatorPort = parsePositive(key, value);
+            break;
+         case HALO_KEY:
+            halo = parsePositive(key, value);
+            break;
+         case SPECTATE_KEY:
+            spectatePort = parsePositive(key, value);
+            break;
+         case SPECTATORS_KEY:
+            headless = true;
+            spectators = parsePositive(key, value);
+            break;
+         case BLIT_KEY:
+            blit = Boolean.parseBoolean(value);
+            break;
+         case BENCH_FRAMES_KEY:
+            benchFrames = parsePositive(key, value);
+            break;
+         case COUNT_INDEX_KEY:
+            countIndex = Boolean.parseBoolean(value);
+            break;
+         case THREADS_KEY:
+            threads = parsePositive(key, value);
+            break;
+         case HEADLESS_KEY:
+            headless = Boolean.parseBoolean(value);
+            break;
+         case DURATION_KEY:
+            duration = parsePositiveLong(key, value);
+            break;
+         case SOAK_KEY:
+            headless = true;
+            soakDays = parsePositiveLong(key, value);
+            break;
+         case SOAK_REPORT_KEY:
+            soakReport = parsePositiveLong(key, value);
+            break;
+         case METRICS_KEY:
+            metrics = Boolean.parseBoolean(value);
+            break;
+         case BUDGETED_KEY:
+            budgeted = Boolean.parseBoolean(value);
+            break;
+         case COALESCE_KEY:
+            coalesce = Boolean.parseBoolean(value);
+            break;
+         case SIM_THREAD_KEY:
+            threads = Math.max(threads, 2);
+            break;
+         case FAST_KEY:
+            timeScale = Math.min(FAST_SCALE, timeScale);
+            break;
+         case FASTER_KEY:
+            timeScale = Math.min(FASTER_SCALE, timeScale);
+            break;
+         case FASTEST_KEY:
+            timeScale = Math.min(FASTEST_SCALE, timeScale);
+            break;
+         default:
+            throw new IllegalArgumentException(
+               String.format("unknown setting %s", key));
+      }
+   }
+
+   private static int parsePositive(String key, String value)
+   {
+      return (int)Math.min(parsePositiveLong(key, value), Integer.MAX_VALUE);
+   }
+
+   private static long parsePositiveLong(String key, String value)
+   {
+      long result = Long.parseLong(value);
+      if (result <= 0)
+      {
+         throw new IllegalArgumentException(
+            String.format("%s must be positive", key));
+      }
+      return result;
+   }
+}
@@ -0,0 +1,55 @@
+/*
+   Cell storage behind a WorldModel: which entity occupies each cell and
+   which background it shows.  Callers have already checked bounds and
+   residency.
+*/
+interface WorldGrid
+{
+   int getNumRows();
+
+   int getNumCols();
+
+   /*
+      Whether pos is in memory now; grids that page cells in treat the
+      rest as outside the world until they are loaded.
+   */
+   default boolean isResident(Point pos)
+   {
+      return true;
+   }
+
+   Entity getOccupant(Point pos);
+
+   void setOccupant(Point pos, Entity entity);
+
+   /*
+      Puts entity in pos if it is empty; returns false if it was not.
+      Only atomic on grids meant to be shared between threads.
+   */
+   default boolean claimOccupant(Point pos, Entity entity)
+   {
+      if (getOccupant(pos) != null)
+      {
+         return false;
+      }
+      setOccupant(pos, entity);
+      return true;
+   }
+
+   /*
+      Empties pos if it holds entity; returns false if it did not.
+   */
+   default boolean releaseOccupant(Point pos, Entity entity)
+   {
+      if (getOccupant(pos) != entity)
+      {
+         return false;
+      }
+      setOccupant(pos, null);
+      return true;
+   }
+
+   Background getBackground(Point pos);
+
+   void setBackground(Point pos, Background background);
+}
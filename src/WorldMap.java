@@ -0,0 +1,250 @@
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Optional;
+import processing.core.PImage;
+
+/*
+   A zoomed-out picture of the world: a mipmap pyramid where a cell of
+   level L covers 2^L by 2^L tiles, holding the average colour of its
+   backgrounds and the number of entities on it.  Levels from STORED_LEVEL
+   up are kept in arrays; the finer ones are cheap enough to work out from
+   the tiles when drawn.  Colours are built once, as backgrounds do not
+   change after loading; entity counts follow the world as an observer.
+   Drawing always fills a fixed number of cells from one level, so a frame
+   costs the same however large the world is.
+*/
+final class WorldMap
+   implements WorldObserver
+{
+   // 4 by 4 tiles, a sixteenth of a cell per tile; finer levels would
+   // cost more memory than the few tiles per cell they save reading
+   private static final int STORED_LEVEL = 2;
+   private static final int DENSITY_COLOR = 0xff3030;
+   // a cell this fraction full of entities is drawn in DENSITY_COLOR
+   private static final double FULL_DENSITY = 0.25;
+   private static final int OUTSIDE_COLOR = 0x000000;
+
+   private final WorldModel world;
+   private final int topLevel;
+   private final int[][] colors;
+   // written by the simulation thread, read by the renderer
+   private final int[][] counts;
+   private final Map<PImage, Integer> averages = new IdentityHashMap<>();
+
+   public WorldMap(WorldModel world)
+   {
+      this.world = world;
+      int level = 0;
+      while ((world.numCols - 1 >> level) > 0
+         || (world.numRows - 1 >> level) > 0)
+      {
+         level++;
+      }
+      this.topLevel = Math.max(level, STORED_LEVEL);
+      this.colors = new int[topLevel + 1][];
+      this.counts = new int[topLevel + 1][];
+
+      for (int l = STORED_LEVEL; l <= topLevel; l++)
+      {
+         colors[l] = new int[levelCols(l) * levelRows(l)];
+         counts[l] = new int[colors[l].length];
+         for (int row = 0; row < levelRows(l); row++)
+         {
+            for (int col = 0; col < levelCols(l); col++)
+            {
+               colors[l][row * levelCols(l) + col] = l == STORED_LEVEL
+                  ? averageTiles(l, col, row) : averageCells(l, col, row);
+            }
+         }
+      }
+      for (Entity entity : world.entities)
+      {
+         count(entity.position, 1);
+      }
+   }
+
+   /* the coarsest level, where one cell covers the whole world */
+   public int getTopLevel()
+   {
+      return topLevel;
+   }
+
+   private int levelCols(int level)
+   {
+      return ((world.numCols - 1) >> level) + 1;
+   }
+
+   private int levelRows(int level)
+   {
+      return ((world.numRows - 1) >> level) + 1;
+   }
+
+   /*
+      Fills pixels, width by height, with opaque cells of the given level,
+      so that the cell holding tile (centreCol, centreRow) is in the middle.
+   */
+   public void render(int[] pixels, int width, int height, int level,
+      int centreCol, int centreRow)
+   {
+      int firstCol = (centreCol >> level) - width / 2;
+      int firstRow = (centreRow >> level) - height / 2;
+      for (int y = 0; y < height; y++)
+      {
+         for (int x = 0; x < width; x++)
+         {
+            pixels[y * width + x] = 0xff000000
+               | cellColor(level, firstCol + x, firstRow + y);
+         }
+      }
+   }
+
+   private int cellColor(int level, int col, int row)
+   {
+      if (col < 0 || row < 0 || col >= levelCols(level)
+         || row >= levelRows(level))
+      {
+         return OUTSIDE_COLOR;
+      }
+
+      int color;
+      int count;
+      if (level >= STORED_LEVEL)
+      {
+         color = colors[level][row * levelCols(level) + col];
+         count = counts[level][row * levelCols(level) + col];
+      }
+      else
+      {
+         color = averageTiles(level, col, row);
+         count = countTiles(level, col, row);
+      }
+      double density = Math.min(1.0,
+         count / (FULL_DENSITY * (1 << level) * (1 << level)));
+      return blend(color, DENSITY_COLOR, density);
+   }
+
+   private int averageTiles(int level, int col, int row)
+   {
+      long[] sums = new long[4];
+      int size = 1 << level;
+      for (int y = row * size; y < Math.min((row + 1) * size, world.numRows);
+           y++)
+      {
+         for (int x = col * size;
+              x < Math.min((col + 1) * size, world.numCols); x++)
+         {
+            Optional<PImage> image = world.getBackgroundImage(new Point(x, y));
+            if (image.isPresent())
+            {
+               accumulate(sums, averageOf(image.get()), 1);
+            }
+         }
+      }
+      return average(sums);
+   }
+
+   private int averageCells(int level, int col, int row)
+   {
+      long[] sums = new long[4];
+      int child = level - 1;
+      for (int y = row * 2; y < Math.min(row * 2 + 2, levelRows(child)); y++)
+      {
+         for (int x = col * 2; x < Math.min(col * 2 + 2, levelCols(child));
+              x++)
+         {
+            int tiles =
+               (Math.min(x + 1 << child, world.numCols) - (x << child))
+               * (Math.min(y + 1 << child, world.numRows) - (y << child));
+            accumulate(sums, colors[child][y * levelCols(child) + x], tiles);
+         }
+      }
+      return average(sums);
+   }
+
+   private int countTiles(int level, int col, int row)
+   {
+      int count = 0;
+      int size = 1 << level;
+      for (int y = row * size; y < Math.min((row + 1) * size, world.numRows);
+           y++)
+      {
+         for (int x = col * size;
+              x < Math.min((col + 1) * size, world.numCols); x++)
+         {
+            count += world.isOccupied(new Point(x, y)) ? 1 : 0;
+         }
+      }
+      return count;
+   }
+
+   private int averageOf(PImage image)
+   {
+      Integer average = averages.get(image);
+      if (average == null)
+      {
+         long[] sums = new long[4];
+         image.loadPixels();
+         for (int pixel : image.pixels)
+         {
+            accumulate(sums, pixel, 1);
+         }
+         average = average(sums);
+         averages.put(image, average);
+      }
+      return average;
+   }
+
+   private static void accumulate(long[] sums, int color, int weight)
+   {
+      sums[0] += ((color >> 16) & 0xff) * (long)weight;
+      sums[1] += ((color >> 8) & 0xff) * (long)weight;
+      sums[2] += (color & 0xff) * (long)weight;
+      sums[3] += weight;
+   }
+
+   private static int average(long[] sums)
+   {
+      if (sums[3] == 0)
+      {
+         return OUTSIDE_COLOR;
+      }
+      return (int)(sums[0] / sums[3]) << 16 | (int)(sums[1] / sums[3]) << 8
+         | (int)(sums[2] / sums[3]);
+   }
+
+   private static int blend(int from, int to, double amount)
+   {
+      int color = 0;
+      for (int shift = 0; shift <= 16; shift += 8)
+      {
+         int a = (from >> shift) & 0xff;
+         int b = (to >> shift) & 0xff;
+         color |= (int)(a + (b - a) * amount) << shift;
+      }
+      return color;
+   }
+
+   private void count(Point pos, int delta)
+   {
+      for (int l = STORED_LEVEL; l <= topLevel; l++)
+      {
+         counts[l][(pos.y >> l) * levelCols(l) + (pos.x >> l)] += delta;
+      }
+   }
+
+   public void entityAdded(Entity entity)
+   {
+      count(entity.position, 1);
+   }
+
+   public void entityMoved(Entity entity, Point from)
+   {
+      count(from, -1);
+      count(entity.position, 1);
+   }
+
+   public void entityRemoved(Entity entity, Point from)
+   {
+      count(from, -1);
+   }
+}
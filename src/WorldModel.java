@@ -1,18 +1,55 @@
 import processing.core.PImage;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 final class WorldModel
 {
     public int numRows;
     public int numCols;
-    public Background background[][];
-    private Entity occupancy[][];
+    private WorldGrid grid;
     public Set<Entity> entities;
+    private SimulationMetrics metrics;
+    private WorldObserver[] observers = new WorldObserver[0];
+    // per-kind counts over rectangles, when enabled
+    private KindCountIndex countIndex;
+    private long nextWorldOrder;
+
+    // entities parked until an entity of some kind is added, or until a
+    // cell next to them is freed, and those woken but not yet rescheduled
+    private Map<EntityKind, List<Entity>> kindSleepers;
+    private Map<Point, List<Entity>> cellSleepers;
+    private Deque<Entity> woken;
+
+    // MINER_NOT_FULL entities without a claim and ORE without a claimant,
+    // insertion ordered so claims break ties the same way every run
+    private Set<Entity> idleMiners;
+    private Set<Entity> unclaimedOre;
+
+    // reverse index of cached targets: target -> entities heading for it,
+    // and target kind -> entities caching a target of that kind
+    private Map<Entity, List<Entity>> targetDependents;
+    private Map<EntityKind, Set<Entity>> targetSeekers;
+
+    // one Background per id read from a save file, shared by its cells
+    private Map<String, Background> backgrounds;
+
+    // source of randomness for activities, seedable so runs can be replayed
+    private Random random;
+
+    // while a speculative executor is committing: the cells written so
+    // far, and a count of additions, removals and moves per kind
+    private Set<Point> writtenCells;
+    private int[] kindVersions;
     private static final int ORE_REACH = 1;
     private static final int PROPERTY_KEY = 0;
-    private static final String MINER_KEY = "miner";
-    private static final String OBSTACLE_KEY = "obstacle";
+    static final String MINER_KEY = "miner";
+    static final String OBSTACLE_KEY = "obstacle";
     private static final int BGND_NUM_PROPERTIES = 4;
     private static final int BGND_ID = 1;
     private static final int BGND_COL = 2;
@@ -36,34 +73,130 @@ final class WorldModel
     private static final int ORE_ROW = 3;
     private static final int ORE_ACTION_PERIOD = 4;
 
-    private static final String SMITH_KEY = "blacksmith";
+    static final String SMITH_KEY = "blacksmith";
     private static final int SMITH_NUM_PROPERTIES = 4;
     private static final int SMITH_ID = 1;
     private static final int SMITH_COL = 2;
     private static final int SMITH_ROW = 3;
 
-    private static final String VEIN_KEY = "vein";
+    static final String VEIN_KEY = "vein";
     private static final int VEIN_NUM_PROPERTIES = 5;
     private static final int VEIN_ID = 1;
     private static final int VEIN_COL = 2;
     private static final int VEIN_ROW = 3;
     private static final int VEIN_ACTION_PERIOD = 4;
 
+    // every save entry keeps its column and row in the same place
+    private static final int ENTRY_COL = 2;
+    private static final int ENTRY_ROW = 3;
+
 
     public WorldModel(int numRows, int numCols, Background defaultBackground)
    {
-      this.numRows = numRows;
-      this.numCols = numCols;
-      this.background = new Background[numRows][numCols];
-      this.occupancy = new Entity[numRows][numCols];
-      this.entities = new HashSet<>();
+      this(new ArrayWorldGrid(numRows, numCols, defaultBackground));
+   }
+
+   public WorldModel(WorldGrid grid)
+   {
+      this.numRows = grid.getNumRows();
+      this.numCols = grid.getNumCols();
+      this.grid = grid;
+      // insertion ordered, so searches break ties the same way every run,
+      // unless the grid is shared between threads
+      this.entities = grid instanceof ConcurrentWorldGrid
+              ? ConcurrentHashMap.newKeySet() : new LinkedHashSet<>();
+      this.kindSleepers = new EnumMap<>(EntityKind.class);
+      this.cellSleepers = new HashMap<>();
+      this.woken = new ArrayDeque<>();
+      this.idleMiners = new LinkedHashSet<>();
+      this.unclaimedOre = new LinkedHashSet<>();
+      this.targetDependents = new HashMap<>();
+      this.targetSeekers = new EnumMap<>(EntityKind.class);
+      this.backgrounds = new HashMap<>();
+      this.random = new Random();
+      this.kindVersions = new int[EntityKind.values().length];
+   }
+
+
+   public void setMetrics(SimulationMetrics metrics)
+   {
+      this.metrics = metrics;
+   }
+
+   /*
+      Observers see changes made through addEntity, moveEntity,
+      removeEntity and evictEntity, not the lock-free try* operations.
+      Forks start without observers.
+   */
+   public void addObserver(WorldObserver observer)
+   {
+      observers = Arrays.copyOf(observers, observers.length + 1);
+      observers[observers.length - 1] = observer;
+   }
+
+   /*
+      Keeps per-kind counts for countEntities and for pruning nearest
+      searches, at four bytes per cell for each kind searched for.  Forks
+      do not inherit the index; they search by scanning, with the same
+      results.
+   */
+   public void enableCountIndex()
+   {
+      if (countIndex == null)
+      {
+         countIndex = new KindCountIndex(this);
+         addObserver(countIndex);
+      }
+   }
 
-      for (int row = 0; row < numRows; row++)
+   /* entities of kind in the rectangle, clipped to the world */
+   public int countEntities(EntityKind kind, int col, int row, int cols,
+      int rows)
+   {
+      if (countIndex != null)
+      {
+         return countIndex.count(kind, col, row, cols, rows);
+      }
+      int count = 0;
+      for (Entity entity : entities)
       {
-         Arrays.fill(this.background[row], defaultBackground);
+         Point pos = entity.position;
+         if (entity.kind == kind && pos.x >= col && pos.x < col + cols
+            && pos.y >= row && pos.y < row + rows)
+         {
+            count++;
+         }
       }
+      return count;
+   }
+
+   public Random getRandom()
+   {
+      return random;
+   }
+
+   public void setRandom(Random random)
+   {
+      this.random = random;
+   }
+
+   /*
+      Records every cell written from now on into cells, or stops
+      recording when cells is null.
+   */
+   public void recordWrites(Set<Point> cells)
+   {
+      this.writtenCells = cells;
    }
 
+   /*
+      Changes whenever an entity of the given kind is added, removed or
+      moved, so a search over that kind is still valid while it holds.
+   */
+   public int getKindVersion(EntityKind kind)
+   {
+      return kindVersions[kind.ordinal()];
+   }
 
    public Optional<Point> findOpenAround(Point pos)
    {
@@ -84,8 +217,41 @@ final class WorldModel
    }
 
 
+   /*
+      Scans a save file for the largest column and row it mentions and
+      returns the extent needed to hold it as (columns, rows).
+   */
+   public static Point measureExtent(Scanner in)
+   {
+      int cols = 0;
+      int rows = 0;
+      while (in.hasNextLine())
+      {
+         String[] properties = in.nextLine().split("\\s");
+         if (properties.length > ENTRY_ROW)
+         {
+            try
+            {
+               cols = Math.max(cols,
+                       Integer.parseInt(properties[ENTRY_COL]) + 1);
+               rows = Math.max(rows,
+                       Integer.parseInt(properties[ENTRY_ROW]) + 1);
+            }
+            catch (NumberFormatException e)
+            {
+               // reported properly when the world is loaded
+            }
+         }
+      }
+      return new Point(cols, rows);
+   }
+
    public void load(Scanner in, ImageStore imageStore)
    {
+      Object flight = FlightEvents.beginLoad();
+      int before = entities.size();
+      int invalid = 0;
+
       int lineNumber = 0;
       while (in.hasNextLine())
       {
@@ -95,20 +261,26 @@ final class WorldModel
             {
                System.err.println(String.format("invalid entry on line %d",
                        lineNumber));
+               invalid++;
             }
          }
          catch (NumberFormatException e)
          {
             System.err.println(String.format("invalid entry on line %d",
                     lineNumber));
+            invalid++;
          }
          catch (IllegalArgumentException e)
          {
             System.err.println(String.format("issue on line %d: %s",
                     lineNumber, e.getMessage()));
+            invalid++;
          }
          lineNumber++;
       }
+
+      FlightEvents.endLoad(flight, "world", lineNumber, invalid,
+         entities.size() - before);
    }
 
     private boolean processLine(String line, ImageStore imageStore)
@@ -143,7 +315,13 @@ final class WorldModel
          Point pt = new Point(Integer.parseInt(properties[BGND_COL]),
                  Integer.parseInt(properties[BGND_ROW]));
          String id = properties[BGND_ID];
-         setBackground(pt, new Background(id, imageStore.getImageList(id)));
+         Background background = backgrounds.get(id);
+         if (background == null)
+         {
+            background = new Background(id, imageStore.getImageList(id));
+            backgrounds.put(id, background);
+         }
+         setBackground(pt, background);
       }
 
       return properties.length == BGND_NUM_PROPERTIES;
@@ -240,7 +418,7 @@ final class WorldModel
     private boolean withinBounds(Point pos)
     {
         return pos.y >= 0 && pos.y < numRows &&
-                pos.x >= 0 && pos.x < numCols;
+                pos.x >= 0 && pos.x < numCols && grid.isResident(pos);
     }
 
     public  boolean isOccupied(Point pos)
@@ -251,16 +429,53 @@ final class WorldModel
 
     public Optional<Entity> findNearest(Point pos, EntityKind kind)
     {
-        List<Entity> ofType = new LinkedList<>();
-        for (Entity entity : entities)
+        NearestSearch search = searchNearest(pos, kind);
+
+        if (metrics != null)
+        {
+            metrics.recordFindNearest(search.scanned);
+        }
+        return search.nearest;
+    }
+
+    /*
+       findNearest without recording anything, safe to call from several
+       threads while nothing is modifying the world.
+    */
+    public Optional<Entity> peekNearest(Point pos, EntityKind kind)
+    {
+        return searchNearest(pos, kind).nearest;
+    }
+
+    /* peekNearest, also telling how many candidates the search read */
+    public NearestSearch searchNearest(Point pos, EntityKind kind)
+    {
+        Object flight = FlightEvents.beginSearch();
+        Optional<Entity> nearest;
+        int scanned;
+        if (countIndex != null)
+        {
+            KindCountIndex.Search search = countIndex.nearest(kind, pos);
+            nearest = search.getNearest();
+            scanned = search.getScanned();
+        }
+        else
         {
-            if (entity.kind == kind)
+            List<Entity> ofType = new ArrayList<>();
+            for (Entity entity : entities)
             {
-                ofType.add(entity);
+                if (entity.kind == kind)
+                {
+                    ofType.add(entity);
+                }
             }
+            nearest = pos.nearestEntity(ofType);
+            scanned = entities.size();
         }
 
-        return pos.nearestEntity(ofType);
+        FlightEvents.endSearch(flight, kind, scanned, countIndex != null,
+                nearest.isPresent());
+        return new NearestSearch(nearest, scanned);
     }
 
     /*
@@ -272,7 +487,27 @@ final class WorldModel
         if (withinBounds(entity.position))
         {
             setOccupancyCell( entity.position, entity);
+            entity.worldOrder = nextWorldOrder++;
             entities.add(entity);
+            kindVersions[entity.kind.ordinal()]++;
+            retargetSeekers(entity);
+            if (entity.kind == EntityKind.ORE)
+            {
+                // only miners wait for ore, and it is theirs one at a time
+                offerOre(entity);
+            }
+            else
+            {
+                if (entity.kind == EntityKind.MINER_NOT_FULL)
+                {
+                    offerMiner(entity);
+                }
+                wakeAll(kindSleepers.remove(entity.kind));
+            }
+            for (WorldObserver observer : observers)
+            {
+                observer.entityAdded(entity);
+            }
         }
     }
 
@@ -281,10 +516,18 @@ final class WorldModel
         Point oldPos = entity.position;
         if (withinBounds(pos) && !pos.equals(oldPos))
         {
-            setOccupancyCell( oldPos, null);
+            // take the new cell before letting go of the old one, so
+            // anyone reading the grid always finds the entity somewhere
             removeEntityAt( pos);
             setOccupancyCell(pos, entity);
             entity.position = pos;
+            releaseOccupancyCell(oldPos, entity);
+            kindVersions[entity.kind.ordinal()]++;
+            wakeAll(cellSleepers.remove(oldPos));
+            for (WorldObserver observer : observers)
+            {
+                observer.entityMoved(entity, oldPos);
+            }
         }
     }
 
@@ -299,15 +542,602 @@ final class WorldModel
                 && getOccupancyCell( pos) != null)
         {
             Entity entity = getOccupancyCell(pos);
+            unpark(entity);
+            woken.remove(entity);
+            releaseClaims(entity);
+            releaseTargets(entity);
 
          /* this moves the entity just outside of the grid for
             debugging purposes */
             entity.position = new Point(-1, -1);
             entities.remove(entity);
-            setOccupancyCell( pos, null);
+            kindVersions[entity.kind.ordinal()]++;
+            releaseOccupancyCell(pos, entity);
+            wakeAll(cellSleepers.remove(pos));
+            for (WorldObserver observer : observers)
+            {
+                observer.entityRemoved(entity, pos);
+            }
+        }
+    }
+
+    /*
+       A world with the same size and backgrounds but no entities.  Array
+       grids share their background rows copy-on-write, so many copies of
+       one loaded world cost little more than their occupancy.
+    */
+    public WorldModel copyTerrain()
+    {
+        if (!(grid instanceof ArrayWorldGrid))
+        {
+            throw new UnsupportedOperationException(
+                    "copyTerrain needs an array grid");
+        }
+        return new WorldModel(new ArrayWorldGrid((ArrayWorldGrid)grid));
+    }
+
+    /*
+       A copy of this world that evolves independently from here on.  The
+       grid is shared row by row until either world writes to a row;
+       entities are copied (they are small, and referenced from events,
+       claims and sleepers alike) and every reference between them is
+       remapped.  copies receives each original entity with its copy, for
+       forking the scheduler to match.
+    */
+    public WorldModel fork(Map<Entity, Entity> copies)
+    {
+        if (!(grid instanceof ArrayWorldGrid))
+        {
+            throw new UnsupportedOperationException("fork needs an array grid");
+        }
+
+        for (Entity entity : entities)
+        {
+            copies.put(entity, entity.copy());
+        }
+        WorldModel fork = new WorldModel(
+                new ArrayWorldGrid((ArrayWorldGrid)grid, copies));
+        for (Entity entity : entities)
+        {
+            Entity copy = copies.get(entity);
+            copy.claim = copies.get(entity.claim);
+            copy.claimant = copies.get(entity.claimant);
+            copy.target = copies.get(entity.target);
+            fork.entities.add(copy);
+        }
+
+        for (Map.Entry<EntityKind, List<Entity>> entry : kindSleepers.entrySet())
+        {
+            fork.kindSleepers.put(entry.getKey(),
+                    mapAll(entry.getValue(), copies, new ArrayList<>()));
+        }
+        for (Map.Entry<Point, List<Entity>> entry : cellSleepers.entrySet())
+        {
+            fork.cellSleepers.put(entry.getKey(),
+                    mapAll(entry.getValue(), copies, new ArrayList<>()));
+        }
+        mapAll(woken, copies, fork.woken);
+        mapAll(idleMiners, copies, fork.idleMiners);
+        mapAll(unclaimedOre, copies, fork.unclaimedOre);
+        for (Map.Entry<Entity, List<Entity>> entry : targetDependents.entrySet())
+        {
+            fork.targetDependents.put(copies.get(entry.getKey()),
+                    mapAll(entry.getValue(), copies, new ArrayList<>()));
+        }
+        for (Map.Entry<EntityKind, Set<Entity>> entry : targetSeekers.entrySet())
+        {
+            fork.targetSeekers.put(entry.getKey(),
+                    mapAll(entry.getValue(), copies, new HashSet<>()));
+        }
+
+        fork.random = copyRandom(random);
+        fork.kindVersions = kindVersions.clone();
+        fork.nextWorldOrder = nextWorldOrder;
+        fork.metrics = metrics;
+        return fork;
+    }
+
+    private static <C extends Collection<Entity>> C mapAll(
+            Collection<Entity> entities, Map<Entity, Entity> copies, C into)
+    {
+        for (Entity entity : entities)
+        {
+            into.add(copies.get(entity));
+        }
+        return into;
+    }
+
+    /*
+       Random has no copy constructor, but its state round-trips through
+       serialization, so a fork draws the same numbers its original would.
+    */
+    private static Random copyRandom(Random random)
+    {
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes))
+            {
+                out.writeObject(random);
+            }
+            try (ObjectInputStream in = new ObjectInputStream(
+                    new ByteArrayInputStream(bytes.toByteArray())))
+            {
+                return (Random)in.readObject();
+            }
+        }
+        catch (IOException | ClassNotFoundException e)
+        {
+            throw new IllegalStateException("cannot copy random state", e);
+        }
+    }
+
+    /*
+       The lock-free counterparts of addEntity, moveEntity and removeEntity,
+       for several threads sharing a world on a ConcurrentWorldGrid.  A
+       cell is taken with compare-and-set, and a move claims its
+       destination before releasing its source, so an entity is never
+       missing from the grid and two entities never end up in one cell.
+       Each returns false, changing nothing, when the cell it needed was
+       taken or no longer held the entity.  Operations on any one entity
+       must not race with each other; operations on different entities
+       may.  Only occupancy and the entity set are updated: sleepers,
+       claims and targets still belong to the scheduler's thread.
+    */
+    public boolean tryPlaceEntity(Entity entity)
+    {
+        if (!withinBounds(entity.position)
+                || !grid.claimOccupant(entity.position, entity))
+        {
+            return false;
+        }
+        entities.add(entity);
+        return true;
+    }
+
+    public boolean tryMoveEntity(Entity entity, Point pos)
+    {
+        Point oldPos = entity.position;
+        if (!withinBounds(pos) || !grid.claimOccupant(pos, entity))
+        {
+            return false;
+        }
+        entity.position = pos;
+        if (!grid.releaseOccupant(oldPos, entity))
+        {
+            // someone else moved or removed it: undo and report failure
+            entity.position = oldPos;
+            grid.releaseOccupant(pos, entity);
+            return false;
+        }
+        return true;
+    }
+
+    public boolean tryRemoveEntity(Entity entity)
+    {
+        Point pos = entity.position;
+        if (!withinBounds(pos) || !grid.releaseOccupant(pos, entity))
+        {
+            return false;
+        }
+        entities.remove(entity);
+        return true;
+    }
+
+    /*
+       Asks for whatever storage backs the given region to be paged in
+       by the next pageChunks; only chunked grids load anything.
+    */
+    public void touchRegion(int col, int row, int cols, int rows)
+    {
+        if (grid instanceof ChunkedWorldGrid)
+        {
+            ((ChunkedWorldGrid)grid).touch(col, row, cols, rows);
         }
     }
 
+    /*
+       Loads the regions asked for since the last call, queueing their
+       events on scheduler, and pages out whatever is over budget.  Only
+       chunked grids page anything, and only between ticks.
+    */
+    public void pageChunks(EventScheduler scheduler)
+    {
+        if (grid instanceof ChunkedWorldGrid)
+        {
+            ((ChunkedWorldGrid)grid).page(scheduler);
+        }
+    }
+
+    /* the grid's paging counts, or null if it does not page */
+    public ChunkedWorldGrid getChunkedGrid()
+    {
+        return grid instanceof ChunkedWorldGrid
+                ? (ChunkedWorldGrid)grid : null;
+    }
+
+    /*
+       Whether an entity can be written out and dropped with its chunk:
+       the save format can represent it.  Its events go with it; whatever
+       it waits for, claims or heads for is worked out again when it is
+       loaded.
+    */
+    public boolean canEvict(Entity entity)
+    {
+        return formatEntity(entity) != null;
+    }
+
+    /*
+       Forgets an entity whose chunk is being paged out; its cell goes
+       away with the chunk.  Anything claiming it or heading for it looks
+       again among the entities still resident.
+    */
+    public void evictEntity(Entity entity)
+    {
+        unpark(entity);
+        woken.remove(entity);
+        releaseClaims(entity);
+        releaseTargets(entity);
+        entities.remove(entity);
+        kindVersions[entity.kind.ordinal()]++;
+        for (WorldObserver observer : observers)
+        {
+            observer.entityRemoved(entity, entity.position);
+        }
+    }
+
+    /*
+       The save file line that recreates an entity, or null for those the
+       save format cannot describe: miners carrying ore, blobs, quakes,
+       and anything whose id has spaces in it, like ore from a vein.
+    */
+    public static String formatEntity(Entity entity)
+    {
+        Point pos = entity.position;
+        if (entity.getId().matches(".*\\s.*"))
+        {
+            return null;
+        }
+        switch (entity.kind)
+        {
+            case BLACKSMITH:
+                return String.format("%s %s %d %d", SMITH_KEY,
+                        entity.getId(), pos.x, pos.y);
+            case OBSTACLE:
+                return String.format("%s %s %d %d", OBSTACLE_KEY,
+                        entity.getId(), pos.x, pos.y);
+            case MINER_NOT_FULL:
+                if (entity.getResourceCount() > 0)
+                {
+                    return null;
+                }
+                return String.format("%s %s %d %d %d %d %d", MINER_KEY,
+                        entity.getId(), pos.x, pos.y,
+                        entity.getResourceLimit(), entity.getActionPeriod(),
+                        entity.getAnimationPeriod());
+            case ORE:
+                return String.format("%s %s %d %d %d", Entity.ORE_KEY,
+                        entity.getId(), pos.x, pos.y, entity.getActionPeriod());
+            case VEIN:
+                return String.format("%s %s %d %d %d", VEIN_KEY,
+                        entity.getId(), pos.x, pos.y, entity.getActionPeriod());
+            default:
+                return null;
+        }
+    }
+
+    /*
+       Like findNearest, but remembers the answer on the seeker.  The cached
+       target is kept until it leaves the world or a strictly closer entity
+       of the same kind is added, so most calls are a field read.
+    */
+    public Optional<Entity> findNearestCached(Entity seeker, EntityKind kind)
+    {
+        if (seeker.target != null && seeker.target.kind == kind)
+        {
+            return Optional.of(seeker.target);
+        }
+
+        Optional<Entity> nearest = findNearest(seeker.position, kind);
+        if (nearest.isPresent())
+        {
+            setTarget(seeker, nearest.get());
+        }
+        return nearest;
+    }
+
+    /*
+       Completes a findNearestCached call whose search was done ahead of
+       time with searchNearest, reading scanned candidates.
+    */
+    public void adoptTarget(Entity seeker, Entity target, int scanned)
+    {
+        if (metrics != null)
+        {
+            metrics.recordFindNearest(scanned);
+        }
+        setTarget(seeker, target);
+    }
+
+    private void setTarget(Entity seeker, Entity target)
+    {
+        clearTarget(seeker);
+        seeker.target = target;
+        targetDependents.computeIfAbsent(target, k -> new ArrayList<>())
+                .add(seeker);
+        targetSeekers.computeIfAbsent(target.kind, k -> new HashSet<>())
+                .add(seeker);
+    }
+
+    private void clearTarget(Entity seeker)
+    {
+        Entity target = seeker.target;
+        if (target != null)
+        {
+            seeker.target = null;
+            removeListEntry(targetDependents, target, seeker);
+            Set<Entity> seekers = targetSeekers.get(target.kind);
+            if (seekers != null)
+            {
+                seekers.remove(seeker);
+            }
+        }
+    }
+
+    private void releaseTargets(Entity entity)
+    {
+        clearTarget(entity);
+
+        List<Entity> dependents = targetDependents.remove(entity);
+        if (dependents != null)
+        {
+            Set<Entity> seekers = targetSeekers.get(entity.kind);
+            for (Entity dependent : dependents)
+            {
+                dependent.target = null;
+                seekers.remove(dependent);
+            }
+        }
+    }
+
+    private void retargetSeekers(Entity added)
+    {
+        Set<Entity> seekers = targetSeekers.get(added.kind);
+        if (seekers == null || seekers.isEmpty())
+        {
+            return;
+        }
+
+        for (Entity seeker : new ArrayList<>(seekers))
+        {
+            if (distanceSquared(seeker.position, added.position)
+                    < distanceSquared(seeker.position, seeker.target.position))
+            {
+                setTarget(seeker, added);
+            }
+        }
+    }
+
+    private static long distanceSquared(Point a, Point b)
+    {
+        long dx = a.x - b.x;
+        long dy = a.y - b.y;
+        return dx * dx + dy * dy;
+    }
+
+    /*
+       The ore reserved for a MINER_NOT_FULL, if any.  Each ore is claimed
+       by at most one miner.  Claims change only as ore and miners come
+       and go: a miner that is added, or whose ore leaves, takes the
+       nearest unclaimed ore, and ore that is added, or whose miner
+       leaves, goes to the nearest miner without a claim, which is woken
+       if it was waiting.  Only one side is ever left over, so each match
+       looks through the surplus alone.
+    */
+    public Optional<Entity> claimedOre(Entity miner)
+    {
+        return Optional.ofNullable(miner.claim);
+    }
+
+    private void offerMiner(Entity miner)
+    {
+        Entity ore = nearestOf(miner.position, unclaimedOre);
+        if (ore == null)
+        {
+            idleMiners.add(miner);
+        }
+        else
+        {
+            claim(miner, ore);
+        }
+    }
+
+    private void offerOre(Entity ore)
+    {
+        Entity miner = nearestOf(ore.position, idleMiners);
+        if (miner == null)
+        {
+            unclaimedOre.add(ore);
+        }
+        else
+        {
+            claim(miner, ore);
+            wake(miner);
+        }
+    }
+
+    private void claim(Entity miner, Entity ore)
+    {
+        idleMiners.remove(miner);
+        unclaimedOre.remove(ore);
+        miner.claim = ore;
+        ore.claimant = miner;
+    }
+
+    private static Entity nearestOf(Point pos, Collection<Entity> candidates)
+    {
+        Entity nearest = null;
+        long nearestDistance = Long.MAX_VALUE;
+        for (Entity candidate : candidates)
+        {
+            long distance = distanceSquared(pos, candidate.position);
+            if (distance < nearestDistance)
+            {
+                nearest = candidate;
+                nearestDistance = distance;
+            }
+        }
+        return nearest;
+    }
+
+    private void releaseClaims(Entity entity)
+    {
+        idleMiners.remove(entity);
+        unclaimedOre.remove(entity);
+        if (entity.claim != null)
+        {
+            // the ore is up for grabs again
+            Entity ore = entity.claim;
+            ore.claimant = null;
+            entity.claim = null;
+            offerOre(ore);
+        }
+        if (entity.claimant != null)
+        {
+            Entity miner = entity.claimant;
+            miner.claim = null;
+            entity.claimant = null;
+            offerMiner(miner);
+        }
+    }
+
+    /*
+       Parks an entity instead of having it poll: it is handed back by
+       pollWoken once an entity of the given kind is added to the world.
+    */
+    public void parkUntilAdded(Entity entity, EntityKind kind)
+    {
+        if (!entity.parked)
+        {
+            entity.parked = true;
+            entity.wakeKind = kind;
+            kindSleepers.computeIfAbsent(kind, k -> new ArrayList<>())
+                    .add(entity);
+        }
+    }
+
+    /*
+       Parks an entity until one of the cells findOpenAround would
+       consider for it is freed.
+    */
+    public void parkUntilFreed(Entity entity)
+    {
+        if (!entity.parked)
+        {
+            entity.parked = true;
+            entity.wakeKind = null;
+            for (Point pt : reachAround(entity.position))
+            {
+                cellSleepers.computeIfAbsent(pt, k -> new ArrayList<>())
+                        .add(entity);
+            }
+        }
+    }
+
+    public int getSleeperEntryCount()
+    {
+        int count = woken.size();
+        for (List<Entity> sleepers : kindSleepers.values())
+        {
+            count += sleepers.size();
+        }
+        for (List<Entity> sleepers : cellSleepers.values())
+        {
+            count += sleepers.size();
+        }
+        return count;
+    }
+
+    /*
+       Returns the next entity whose wake condition has occurred, or null.
+    */
+    public Entity pollWoken()
+    {
+        return woken.poll();
+    }
+
+    private void wakeAll(List<Entity> sleepers)
+    {
+        if (sleepers != null)
+        {
+            for (Entity sleeper : sleepers)
+            {
+                wake(sleeper);
+            }
+        }
+    }
+
+    private void wake(Entity sleeper)
+    {
+        if (sleeper.parked)
+        {
+            unpark(sleeper);
+            woken.add(sleeper);
+        }
+    }
+
+    private void unpark(Entity entity)
+    {
+        if (!entity.parked)
+        {
+            return;
+        }
+        entity.parked = false;
+
+        if (entity.wakeKind != null)
+        {
+            removeListEntry(kindSleepers, entity.wakeKind, entity);
+        }
+        else
+        {
+            for (Point pt : reachAround(entity.position))
+            {
+                removeListEntry(cellSleepers, pt, entity);
+            }
+        }
+    }
+
+    private static <K> void removeListEntry(Map<K, List<Entity>> sleepers,
+                                          K key, Entity entity)
+    {
+        List<Entity> list = sleepers.get(key);
+        if (list != null)
+        {
+            list.remove(entity);
+            if (list.isEmpty())
+            {
+                sleepers.remove(key);
+            }
+        }
+    }
+
+    private List<Point> reachAround(Point pos)
+    {
+        List<Point> around = new ArrayList<>();
+        for (int dy = -ORE_REACH; dy <= ORE_REACH; dy++)
+        {
+            for (int dx = -ORE_REACH; dx <= ORE_REACH; dx++)
+            {
+                Point pt = new Point(pos.x + dx, pos.y + dy);
+                if (withinBounds(pt))
+                {
+                    around.add(pt);
+                }
+            }
+        }
+        return around;
+    }
+
     public Optional<PImage> getBackgroundImage(Point pos)
     {
         if (withinBounds(pos))
@@ -331,9 +1161,10 @@ final class WorldModel
 
     public Optional<Entity> getOccupant(Point pos)
     {
-        if (isOccupied(pos))
+        // read the cell once: another thread may empty it meanwhile
+        if (withinBounds(pos))
         {
-            return Optional.of(getOccupancyCell(pos));
+            return Optional.ofNullable(getOccupancyCell(pos));
         }
         else
         {
@@ -343,23 +1174,36 @@ final class WorldModel
 
     private Entity getOccupancyCell(Point pos)
     {
-        return occupancy[pos.y][pos.x];
+        return grid.getOccupant(pos);
     }
 
     private void setOccupancyCell(Point pos,
                                         Entity entity)
     {
-        occupancy[pos.y][pos.x] = entity;
+        grid.setOccupant(pos, entity);
+        if (writtenCells != null)
+        {
+            writtenCells.add(pos);
+        }
+    }
+
+    private void releaseOccupancyCell(Point pos, Entity entity)
+    {
+        grid.releaseOccupant(pos, entity);
+        if (writtenCells != null)
+        {
+            writtenCells.add(pos);
+        }
     }
 
     private Background getBackgroundCell(Point pos)
     {
-        return background[pos.y][pos.x];
+        return grid.getBackground(pos);
     }
 
-//    public void setBackgroundCell(Point pos, Background background)
-//    {
-//        world.background[pos.y][pos.x] = background;
-//    }
+    public void setBackgroundCell(Point pos, Background background)
+    {
+        grid.setBackground(pos, background);
+    }
 }
 
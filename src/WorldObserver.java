@@ -0,0 +1,29 @@
+/*
+   Told about every change to a world: entities coming, going and moving
+   (from WorldModel), frames advancing and ticks ending (from the
+   EventScheduler driving it).  Callbacks run on the simulation's thread,
+   in the order the changes happen, and must be quick.
+*/
+interface WorldObserver
+{
+   default void entityAdded(Entity entity)
+   {
+   }
+
+   default void entityMoved(Entity entity, Point from)
+   {
+   }
+
+   /* from is where the entity was; its position is no longer valid */
+   default void entityRemoved(Entity entity, Point from)
+   {
+   }
+
+   default void entityAnimated(Entity entity)
+   {
+   }
+
+   default void tickEnded(long time)
+   {
+   }
+}
@@ -0,0 +1,443 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Scanner;
+import java.util.Set;
+
+/*
+   One process of a sharded world.  It owns a stripe of columns and keeps
+   only those (plus a halo of config.halo columns either side) in
+   memory.  The halo holds ghosts: inert stand-ins for the neighbouring
+   shards' entities, refreshed every window, so moves and target searches near
+   the border see what is on the other side.  Ore, veins and blacksmiths
+   keep their kind as ghosts, so they can be targeted; everything else
+   becomes an obstacle.
+
+   The coordinator advances all shards one window at a time.  At the end
+   of a window a shard hands every entity that has walked (or been
+   spawned) into the halo to its owner, pending events included, reports
+   every ghost it consumed so the owner removes the real entity, and
+   sends fresh ghosts of its own border columns.  Nothing crosses a
+   border mid-window, so a shard never needs anything from the future.
+*/
+final class WorldShard
+{
+   private final WorldConfig config;
+   private final int index;
+   private final int firstCol;
+   private final int endCol;
+   private final int halo;
+   private final ImageStore imageStore;
+   private final WorldModel world;
+   private final HeadlessSimulation simulation;
+
+   private final Map<Point, Entity> ghosts = new HashMap<>();
+   // ghosts consumed last window: the owner's next update still has them
+   private Set<String> consumed = new HashSet<>();
+
+   private DataInputStream in;
+   private DataOutputStream out;
+   private int collisions;
+   // REMOVEs for entities that had already moved or gone: a neighbour
+   // consumed one this shard went on using, so it was consumed twice
+   private int staleRemoves;
+
+   public WorldShard(WorldConfig config)
+   {
+      this.config = config;
+      this.index = config.shardIndex;
+      this.halo = config.halo;
+      this.firstCol = stripeStart(index, config.shards, config.cols);
+      this.endCol = stripeStart(index + 1, config.shards, config.cols);
+      this.imageStore = HeadlessSimulation.createImageStore(config);
+      this.world = new WorldModel(new StripeWorldGrid(config.rows,
+         config.cols, firstCol - halo, endCol + halo,
+         VirtualWorld.createDefaultBackground(imageStore)));
+      world.setRandom(new Random(config.seed + index));
+      loadStripe();
+      this.simulation = new HeadlessSimulation(config, imageStore, world);
+   }
+
+   /* first column of a stripe; stripe i covers [start(i), start(i + 1)) */
+   public static int stripeStart(int index, int shards, int cols)
+   {
+      return (int)((long)index * cols / shards);
+   }
+
+   private int ownerOf(int col)
+   {
+      int owner = (int)((long)col * config.shards / config.cols);
+      while (stripeStart(owner + 1, config.shards, config.cols) <= col)
+      {
+         owner++;
+      }
+      while (stripeStart(owner, config.shards, config.cols) > col)
+      {
+         owner--;
+      }
+      return owner;
+   }
+
+   private boolean owns(Point pos)
+   {
+      return pos.x >= firstCol && pos.x < endCol;
+   }
+
+   /*
+      Loads the save file's backgrounds for the stripe and halo, and its
+      entities for the stripe alone.
+   */
+   private void loadStripe()
+   {
+      StringBuilder stripe = new StringBuilder();
+      try (Scanner save = new Scanner(new File(config.saveFile)))
+      {
+         while (save.hasNextLine())
+         {
+            String line = save.nextLine();
+            String[] properties = line.split("\\s");
+            if (properties.length > 3)
+            {
+               try
+               {
+                  int col = Integer.parseInt(properties[2]);
+                  boolean background = properties[0].equals("background");
+                  if (col < firstCol - (background ? halo : 0)
+                     || col >= endCol + (background ? halo : 0))
+                  {
+                     continue;
+                  }
+               }
+               catch (NumberFormatException e)
+               {
+                  // let the loader report it
+               }
+            }
+            stripe.append(line).append('\n');
+         }
+      }
+      catch (FileNotFoundException e)
+      {
+         System.err.println(e.getMessage());
+      }
+      world.load(new Scanner(stripe.toString()), imageStore);
+   }
+
+   public static void run(WorldConfig config)
+   {
+      WorldShard shard = new WorldShard(config);
+      try (Socket socket = new Socket(InetAddress.getLoopbackAddress(),
+         config.coordinatorPort))
+      {
+         socket.setTcpNoDelay(true);
+         shard.in = new DataInputStream(new BufferedInputStream(
+            socket.getInputStream()));
+         shard.out = new DataOutputStream(new BufferedOutputStream(
+            socket.getOutputStream()));
+         shard.out.writeInt(shard.index);
+         shard.out.flush();
+         shard.serve();
+      }
+      catch (IOException e)
+      {
+         System.err.println(String.format("shard %d: %s", config.shardIndex,
+            e.getMessage()));
+      }
+   }
+
+   private void serve()
+      throws IOException
+   {
+      while (true)
+      {
+         byte tag = in.readByte();
+         switch (tag)
+         {
+            case ShardProtocol.ADVANCE:
+               long time = in.readLong();
+               if (time > simulation.getTime())
+               {
+                  simulation.advance(time - simulation.getTime());
+               }
+               endWindow();
+               break;
+
+            case ShardProtocol.STOP:
+               System.out.println(String.format(
+                  "shard %d (columns %d-%d): %s, %d migration collisions, "
+                  + "%d stale removes", index, firstCol, endCol - 1,
+                  realCensus(), collisions, staleRemoves));
+               return;
+
+            default:
+               in.readInt();
+               byte[] body = new byte[in.readInt()];
+               in.readFully(body);
+               receive(tag, new DataInputStream(
+                  new ByteArrayInputStream(body)));
+         }
+      }
+   }
+
+   private void receive(byte tag, DataInputStream body)
+      throws IOException
+   {
+      switch (tag)
+      {
+         case ShardProtocol.MIGRATE:
+            arrive(body);
+            break;
+         case ShardProtocol.GHOSTS:
+            refreshGhosts(body);
+            break;
+         case ShardProtocol.REMOVE:
+            Entity record = ShardProtocol.readRecord(body);
+            Optional<Entity> target = world.getOccupant(record.position);
+            if (target.isPresent() && target.get().kind == record.kind
+               && target.get().getId().equals(record.getId()))
+            {
+               world.removeEntity(target.get());
+               simulation.getScheduler().unscheduleAllEvents(target.get());
+            }
+            else
+            {
+               staleRemoves++;
+            }
+            break;
+         default:
+            throw new IOException(String.format("unexpected tag %d", tag));
+      }
+   }
+
+   private void arrive(DataInputStream body)
+      throws IOException
+   {
+      Entity entity = Entity.readFrom(body, imageStore);
+      int events = body.readByte();
+      long[] times = new long[events];
+      int[] repeats = new int[events];
+      ActionKind[] kinds = new ActionKind[events];
+      for (int i = 0; i < events; i++)
+      {
+         kinds[i] = ActionKind.values()[body.readByte()];
+         times[i] = body.readLong();
+         repeats[i] = body.readInt();
+      }
+
+      if (world.isOccupied(entity.position))
+      {
+         // something on this side took the cell during the same window
+         Optional<Point> open = world.findOpenAround(entity.position);
+         if (!open.isPresent() || !owns(open.get()))
+         {
+            collisions++;
+            return;
+         }
+         entity.position = open.get();
+      }
+      world.addEntity(entity);
+
+      EventScheduler scheduler = simulation.getScheduler();
+      if (events == 0)
+      {
+         entity.scheduleActions(scheduler, world, imageStore);
+      }
+      for (int i = 0; i < events; i++)
+      {
+         Action action = kinds[i] == ActionKind.ANIMATION
+            ? entity.createAnimationAction(repeats[i])
+            : entity.createActivityAction(world, imageStore);
+         scheduler.scheduleAt(entity, action, times[i]);
+      }
+   }
+
+   private void refreshGhosts(DataInputStream body)
+      throws IOException
+   {
+      int from = body.readInt();
+      int count = body.readInt();
+      Map<Point, Entity> fresh = new HashMap<>();
+      for (int i = 0; i < count; i++)
+      {
+         Entity record = ShardProtocol.readRecord(body);
+         if (!consumed.contains(key(record)))
+         {
+            fresh.put(record.position, record);
+         }
+      }
+
+      // drop ghosts of that neighbour that are gone or have changed
+      for (Entity ghost : new ArrayList<>(ghosts.values()))
+      {
+         Entity record = fresh.get(ghost.position);
+         if (ownerOf(ghost.position.x) == from && (record == null
+            || !record.getId().equals(ghost.getId())
+            || ghostKind(record.kind) != ghost.kind))
+         {
+            ghosts.remove(ghost.position);
+            world.removeEntity(ghost);
+         }
+      }
+
+      for (Entity record : fresh.values())
+      {
+         if (!ghosts.containsKey(record.position)
+            && !world.isOccupied(record.position))
+         {
+            Entity ghost = new Entity(ghostKind(record.kind), record.getId(),
+               record.position,
+               imageStore.getImageList(Entity.imageKey(record.kind)),
+               0, 0, 0, 0);
+            ghosts.put(ghost.position, ghost);
+            world.addEntity(ghost);
+         }
+      }
+   }
+
+   private static EntityKind ghostKind(EntityKind kind)
+   {
+      switch (kind)
+      {
+         case ORE:
+         case VEIN:
+         case BLACKSMITH:
+            return kind;
+         default:
+            return EntityKind.OBSTACLE;
+      }
+   }
+
+   private static String key(Entity entity)
+   {
+      return entity.getId() + "@" + entity.position.x + "," + entity.position.y;
+   }
+
+   /*
+      Sends everything the neighbours need from this window, then END.
+   */
+   private void endWindow()
+      throws IOException
+   {
+      EventScheduler scheduler = simulation.getScheduler();
+
+      for (Entity entity : new ArrayList<>(world.entities))
+      {
+         if (!owns(entity.position) && ghosts.get(entity.position) != entity)
+         {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream body = new DataOutputStream(bytes);
+            entity.writeTo(body);
+            List<Event> events = new ArrayList<>();
+            for (Event event = entity.pendingEvents; event != null;
+                 event = event.nextPending)
+            {
+               events.add(event);
+            }
+            body.writeByte(events.size());
+            for (Event event : events)
+            {
+               body.writeByte(event.action.kind.ordinal());
+               body.writeLong(event.time);
+               body.writeInt(event.action.repeatCount);
+            }
+            send(ShardProtocol.MIGRATE, ownerOf(entity.position.x), bytes);
+
+            world.removeEntity(entity);
+            scheduler.unscheduleAllEvents(entity);
+         }
+      }
+
+      consumed = new HashSet<>();
+      for (Map.Entry<Point, Entity> entry : new ArrayList<>(
+         ghosts.entrySet()))
+      {
+         Entity ghost = entry.getValue();
+         if (!world.entities.contains(ghost))
+         {
+            ghosts.remove(entry.getKey());
+            ghost.position = entry.getKey();
+            consumed.add(key(ghost));
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ShardProtocol.writeRecord(new DataOutputStream(bytes), ghost);
+            send(ShardProtocol.REMOVE, ownerOf(ghost.position.x), bytes);
+         }
+      }
+
+      if (index > 0)
+      {
+         sendGhosts(index - 1, firstCol, firstCol + halo);
+      }
+      if (index < config.shards - 1)
+      {
+         sendGhosts(index + 1, endCol - halo, endCol);
+      }
+
+      out.writeByte(ShardProtocol.END);
+      Map<EntityKind, Integer> census = realCensus();
+      for (EntityKind kind : EntityKind.values())
+      {
+         out.writeInt(census.getOrDefault(kind, 0));
+      }
+      out.writeInt(collisions);
+      out.writeInt(staleRemoves);
+      out.flush();
+   }
+
+   private void sendGhosts(int dest, int fromCol, int toCol)
+      throws IOException
+   {
+      List<Entity> border = new ArrayList<>();
+      for (Entity entity : world.entities)
+      {
+         if (entity.position.x >= fromCol && entity.position.x < toCol
+            && owns(entity.position))
+         {
+            border.add(entity);
+         }
+      }
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream body = new DataOutputStream(bytes);
+      body.writeInt(index);
+      body.writeInt(border.size());
+      for (Entity entity : border)
+      {
+         ShardProtocol.writeRecord(body, entity);
+      }
+      send(ShardProtocol.GHOSTS, dest, bytes);
+   }
+
+   private void send(byte tag, int dest, ByteArrayOutputStream body)
+      throws IOException
+   {
+      out.writeByte(tag);
+      out.writeInt(dest);
+      out.writeInt(body.size());
+      body.writeTo(out);
+   }
+
+   private Map<EntityKind, Integer> realCensus()
+   {
+      Map<EntityKind, Integer> census = simulation.census();
+      for (Entity ghost : ghosts.values())
+      {
+         census.merge(ghost.kind, -1, Integer::sum);
+      }
+      return census;
+   }
+}
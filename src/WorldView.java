@@ -1,4 +1,5 @@
 import processing.core.PApplet;
+import processing.core.PConstants;
 import processing.core.PImage;
 
 import java.util.Optional;
@@ -11,6 +12,19 @@ final class WorldView
     private int tileHeight;
     private Viewport viewport;
 
+    // zoom 0 draws tiles; zoom z draws level z - 1 of the map, a cell of
+    // MAP_CELL_PIXELS per 2^(z - 1) tiles, centred on the viewport
+    private static final int MAP_CELL_PIXELS = 4;
+    // cells the view moves per key while zoomed out
+    private static final int MAP_PAN_CELLS = 8;
+    private WorldMap map;
+    private PImage mapImage;
+    private int zoom;
+
+    // draws tiles and sprites into the screen's pixels while blitting
+    private final PixelBlitter blitter = new PixelBlitter();
+    private boolean blitting;
+
    public WorldView(int numRows, int numCols, PApplet screen, WorldModel world,
       int tileWidth, int tileHeight)
    {
@@ -26,11 +40,58 @@ final class WorldView
       return Math.min(high, Math.max(value, low));
    }
 
+   public void setMap(WorldMap map)
+   {
+      this.map = map;
+      this.mapImage = new PImage(viewport.numCols * tileWidth / MAP_CELL_PIXELS,
+              viewport.numRows * tileHeight / MAP_CELL_PIXELS, PConstants.RGB);
+   }
+
+   /*
+      Switches between drawing through PApplet.image and writing pixels
+      directly; stays off where the screen does not support it.
+   */
+   public void setBlitting(boolean blitting)
+   {
+      this.blitting = blitting && PixelBlitter.supports(screen);
+   }
+
+   public boolean isBlitting()
+   {
+      return blitting;
+   }
+
+   private void drawImage(PImage image, int x, int y)
+   {
+      if (blitting)
+      {
+         blitter.draw(image, x, y);
+      }
+      else
+      {
+         screen.image(image, x, y);
+      }
+   }
+
+   public void zoomIn()
+   {
+      zoom = Math.max(zoom - 1, 0);
+   }
+
+   public void zoomOut()
+   {
+      if (map != null)
+      {
+         zoom = Math.min(zoom + 1, map.getTopLevel() + 1);
+      }
+   }
+
    public void shiftView(int colDelta, int rowDelta)
    {
-      int newCol = clamp(viewport.col + colDelta, 0,
+      int step = zoom == 0 ? 1 : MAP_PAN_CELLS << (zoom - 1);
+      int newCol = clamp(viewport.col + colDelta * step, 0,
               world.numCols - viewport.numCols);
-      int newRow = clamp(viewport.row + rowDelta, 0,
+      int newRow = clamp(viewport.row + rowDelta * step, 0,
               world.numRows - viewport.numRows);
 
       viewport.shift(newCol, newRow);
@@ -46,7 +107,7 @@ final class WorldView
             Optional<PImage> image = world.getBackgroundImage(worldPoint);
             if (image.isPresent())
             {
-               screen.image(image.get(), col * tileWidth,
+               drawImage(image.get(), col * tileWidth,
                        row * tileHeight);
             }
          }
@@ -62,16 +123,109 @@ final class WorldView
          if (viewport.contains(pos))
          {
             Point viewPoint = viewport.worldToViewport( pos.x, pos.y);
-            screen.image(Functions.getCurrentImage(entity),
+            drawImage(Functions.getCurrentImage(entity),
                     viewPoint.x * tileWidth, viewPoint.y * tileHeight);
          }
       }
    }
 
+   /*
+      Draws the map at the current zoom with the viewport outlined.  The
+      simulation keeps the viewport in focus while zoomed out.
+   */
+   private void drawMap()
+   {
+      int level = zoom - 1;
+      int centreCol = viewport.col + viewport.numCols / 2;
+      int centreRow = viewport.row + viewport.numRows / 2;
+      mapImage.loadPixels();
+      map.render(mapImage.pixels, mapImage.width, mapImage.height, level,
+              centreCol, centreRow);
+      mapImage.updatePixels();
+      screen.image(mapImage, 0, 0, mapImage.width * MAP_CELL_PIXELS,
+              mapImage.height * MAP_CELL_PIXELS);
+
+      int firstCol = (centreCol >> level) - mapImage.width / 2;
+      int firstRow = (centreRow >> level) - mapImage.height / 2;
+      screen.noFill();
+      screen.stroke(255);
+      screen.rect(((viewport.col >> level) - firstCol) * MAP_CELL_PIXELS,
+              ((viewport.row >> level) - firstRow) * MAP_CELL_PIXELS,
+              Math.max(1, viewport.numCols >> level) * MAP_CELL_PIXELS,
+              Math.max(1, viewport.numRows >> level) * MAP_CELL_PIXELS);
+   }
+
    public void drawViewport()
    {
+      Object flight = FlightEvents.beginFrame();
+      if (zoom > 0)
+      {
+         drawMap();
+      }
+      else
+      {
+         if (blitting)
+         {
+            blitter.begin(screen);
+         }
+         drawBackground();
+         drawEntities();
+         if (blitting)
+         {
+            blitter.end(screen);
+         }
+      }
+      commitFrame(flight, false);
+   }
+
+   private void commitFrame(Object flight, boolean snapshot)
+   {
+      FlightEvents.endFrame(flight, zoom, blitting, snapshot);
+   }
+
+   /*
+      Draws entities from a snapshot published by the simulation thread
+      rather than from the live world.  Backgrounds are still read straight
+      from the world: they are written only by WorldModel.load, which ends
+      before the simulation thread is started, so every write happens
+      before any read here.  Chunked grids, which page backgrounds in as
+      they go, refuse to run with a simulation thread.
+   */
+   public void drawViewport(RenderSnapshot snapshot)
+   {
+      Object flight = FlightEvents.beginFrame();
+      if (zoom > 0)
+      {
+         drawMap();
+         commitFrame(flight, true);
+         return;
+      }
+      if (blitting)
+      {
+         blitter.begin(screen);
+      }
       drawBackground();
-      drawEntities();
+      for (int i = 0; i < snapshot.count; i++)
+      {
+         int col = snapshot.xs[i] - viewport.col;
+         int row = snapshot.ys[i] - viewport.row;
+         if (col >= 0 && col < viewport.numCols
+                 && row >= 0 && row < viewport.numRows)
+         {
+            drawImage(snapshot.images[i], col * tileWidth,
+                    row * tileHeight);
+         }
+      }
+      if (blitting)
+      {
+         blitter.end(screen);
+      }
+      commitFrame(flight, true);
+   }
+
+   public Viewport getViewport()
+   {
+      return viewport;
    }
 
 